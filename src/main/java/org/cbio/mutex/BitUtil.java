@@ -0,0 +1,144 @@
+package org.cbio.mutex;
+
+/**
+ * Word-parallel operations on alteration bitsets. A bitset packs one sample per bit into 64-bit
+ * words, where sample i is stored at bit (i % 64) of word (i / 64). Unused high bits of the last
+ * word are always zero, so the counts below do not need masking.
+ *
+ * @author Ozgun Babur
+ */
+public class BitUtil
+{
+	/**
+	 * Gets the number of words needed to store the given number of samples.
+	 */
+	public static int wordCount(int size)
+	{
+		return (size + 63) >>> 6;
+	}
+
+	/**
+	 * Packs the given boolean array into a bitset.
+	 */
+	public static long[] pack(boolean[] b)
+	{
+		long[] bits = new long[wordCount(b.length)];
+		for (int i = 0; i < b.length; i++)
+		{
+			if (b[i]) bits[i >>> 6] |= 1L << i;
+		}
+		return bits;
+	}
+
+	/**
+	 * Unpacks the given bitset into a boolean array of the given size.
+	 */
+	public static boolean[] unpack(long[] bits, int size)
+	{
+		boolean[] b = new boolean[size];
+		for (int i = 0; i < size; i++)
+		{
+			b[i] = get(bits, i);
+		}
+		return b;
+	}
+
+	public static boolean get(long[] bits, int i)
+	{
+		return (bits[i >>> 6] & (1L << i)) != 0;
+	}
+
+	public static void set(long[] bits, int i, boolean val)
+	{
+		if (val) bits[i >>> 6] |= 1L << i;
+		else bits[i >>> 6] &= ~(1L << i);
+	}
+
+	/**
+	 * Swaps the values at the given two positions.
+	 */
+	public static void swap(long[] bits, int i, int j)
+	{
+		boolean bi = get(bits, i);
+		if (bi != get(bits, j))
+		{
+			bits[i >>> 6] ^= 1L << i;
+			bits[j >>> 6] ^= 1L << j;
+		}
+	}
+
+	public static int count(long[] a)
+	{
+		int cnt = 0;
+		for (long w : a) cnt += Long.bitCount(w);
+		return cnt;
+	}
+
+	/**
+	 * Counts |a & b|.
+	 */
+	public static int countAnd(long[] a, long[] b)
+	{
+		int cnt = 0;
+		for (int i = 0; i < a.length; i++) cnt += Long.bitCount(a[i] & b[i]);
+		return cnt;
+	}
+
+	/**
+	 * Counts |a | b|.
+	 */
+	public static int countOr(long[] a, long[] b)
+	{
+		int cnt = 0;
+		for (int i = 0; i < a.length; i++) cnt += Long.bitCount(a[i] | b[i]);
+		return cnt;
+	}
+
+	/**
+	 * Counts |a | (b & c)|.
+	 */
+	public static int countOrAnd(long[] a, long[] b, long[] c)
+	{
+		int cnt = 0;
+		for (int i = 0; i < a.length; i++) cnt += Long.bitCount(a[i] | (b[i] & c[i]));
+		return cnt;
+	}
+
+	/**
+	 * Checks if a has any bit that is not in b, i.e. a & ~b is not empty.
+	 */
+	public static boolean hasAndNot(long[] a, long[] b)
+	{
+		for (int i = 0; i < a.length; i++)
+		{
+			if ((a[i] & ~b[i]) != 0) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Performs a |= b.
+	 */
+	public static void or(long[] a, long[] b)
+	{
+		for (int i = 0; i < a.length; i++) a[i] |= b[i];
+	}
+
+	/**
+	 * Performs a |= (b & c).
+	 */
+	public static void orAnd(long[] a, long[] b, long[] c)
+	{
+		for (int i = 0; i < a.length; i++) a[i] |= b[i] & c[i];
+	}
+
+	/**
+	 * Gets a & b in a new array.
+	 */
+	public static long[] and(long[] a, long[] b)
+	{
+		long[] c = new long[a.length];
+		for (int i = 0; i < a.length; i++) c[i] = a[i] & b[i];
+		return c;
+	}
+}
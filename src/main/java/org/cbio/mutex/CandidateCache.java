@@ -0,0 +1,211 @@
+package org.cbio.mutex;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * A memory bounded cache of the expansion candidates of groups, keyed by the set of members. The
+ * same groups are formed many times while sampling null distributions, because shuffling changes
+ * the alterations but not the network.
+ *
+ * Entries are keyed by a 64-bit fingerprint of the sorted member indices, and the members are
+ * compared on lookup, so a fingerprint collision cannot return wrong candidates. The cache is split
+ * into segments by fingerprint, each with its own lock and its share of the memory. A segment
+ * evicts its least recently used entries when it exceeds its memory.
+ *
+ * @author Ozgun Babur
+ */
+public class CandidateCache
+{
+	private static final int SEGMENT_BITS = 4;
+
+	/**
+	 * Estimated memory of an entry besides its arrays.
+	 */
+	private static final int ENTRY_OVERHEAD = 128;
+
+	private final Segment[] segments;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * Constructor with the memory limit.
+	 * @param maxBytes estimated memory that the entries can use
+	 */
+	public CandidateCache(long maxBytes)
+	{
+		segments = new Segment[1 << SEGMENT_BITS];
+		for (int i = 0; i < segments.length; i++)
+		{
+			segments[i] = new Segment(maxBytes / segments.length);
+		}
+	}
+
+	private static long fingerprint(int[] members)
+	{
+		long h = 0xCBF29CE484222325L;
+		for (int m : members)
+		{
+			h = (h ^ m) * 0x100000001B3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * Gets the candidates of the given members, computing them if not cached. The returned bitset
+	 * is shared, and should not be modified.
+	 * @param members indices of the members, in any order, which are not modified
+	 * @param compute calculates the candidates
+	 * @return bitset of the candidates
+	 */
+	public long[] get(int[] members, Supplier<long[]> compute)
+	{
+		int[] key = members.clone();
+		Arrays.sort(key);
+		long fp = fingerprint(key);
+		Segment segment = segments[(int) (fp >>> (64 - SEGMENT_BITS))];
+
+		long[] cands = segment.get(fp, key);
+		if (cands != null)
+		{
+			hits.increment();
+			return cands;
+		}
+
+		misses.increment();
+		cands = compute.get();
+		segment.put(fp, key, cands);
+		return cands;
+	}
+
+	public long getHits()
+	{
+		return hits.sum();
+	}
+
+	public long getMisses()
+	{
+		return misses.sum();
+	}
+
+	/**
+	 * Gets the ratio of queries that are answered from the cache.
+	 */
+	public double getHitRate()
+	{
+		long h = getHits();
+		long total = h + getMisses();
+		return total == 0 ? 0 : h / (double) total;
+	}
+
+	/**
+	 * Estimates the memory used by the entries.
+	 */
+	public long getMemoryBytes()
+	{
+		long bytes = 0;
+		for (Segment segment : segments)
+		{
+			bytes += segment.getBytes();
+		}
+		return bytes;
+	}
+
+	public int size()
+	{
+		int size = 0;
+		for (Segment segment : segments)
+		{
+			size += segment.size();
+		}
+		return size;
+	}
+
+	public String getReport()
+	{
+		return String.format("Candidate cache: hit rate = %.1f%% (%d hits, %d misses), " +
+			"%d entries, %.1f MB", getHitRate() * 100, getHits(), getMisses(), size(),
+			getMemoryBytes() / 1E6);
+	}
+
+	/**
+	 * An immutable cache entry.
+	 */
+	private static final class Entry
+	{
+		final int[] members;
+		final long[] cands;
+
+		Entry(int[] members, long[] cands)
+		{
+			this.members = members;
+			this.cands = cands;
+		}
+
+		long getBytes()
+		{
+			return ENTRY_OVERHEAD + 4L * members.length + 8L * cands.length;
+		}
+	}
+
+	/**
+	 * Part of the cache with its own lock.
+	 */
+	private static final class Segment
+	{
+		private final long maxBytes;
+		private long bytes;
+
+		/**
+		 * Entries in the order of access, the least recent first.
+		 */
+		private final LinkedHashMap<Long, Entry> map = new LinkedHashMap<>(16, 0.75f, true);
+
+		Segment(long maxBytes)
+		{
+			this.maxBytes = maxBytes;
+		}
+
+		synchronized long[] get(long fp, int[] members)
+		{
+			Entry e = map.get(fp);
+			return e != null && Arrays.equals(e.members, members) ? e.cands : null;
+		}
+
+		synchronized void put(long fp, int[] members, long[] cands)
+		{
+			Entry e = new Entry(members, cands);
+			if (e.getBytes() > maxBytes) return;
+
+			// a colliding entry is replaced
+			Entry old = map.put(fp, e);
+			if (old != null) bytes -= old.getBytes();
+			bytes += e.getBytes();
+
+			Iterator<Map.Entry<Long, Entry>> iter = map.entrySet().iterator();
+			while (bytes > maxBytes)
+			{
+				bytes -= iter.next().getValue().getBytes();
+				iter.remove();
+			}
+		}
+
+		synchronized long getBytes()
+		{
+			return bytes;
+		}
+
+		synchronized int size()
+		{
+			return map.size();
+		}
+	}
+}
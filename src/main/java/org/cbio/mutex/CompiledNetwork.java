@@ -0,0 +1,410 @@
+package org.cbio.mutex;
+
+import org.panda.utility.graph.DirectedGraph;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * The network compiled into integer indexed adjacency arrays, for finding expansion candidates
+ * without string sets. Nodes are indexed densely, with the data genes first, in alphabetical order,
+ * and then the other nodes of the network. Upstream and downstream of the nodes are stored in the
+ * compressed sparse row format, i.e. the neighbors of node i are at positions start[i] to
+ * start[i + 1] of a single array, in ascending order.
+ *
+ * Since the data genes have the lowest indices, a set of data genes is a bitset of data gene
+ * count bits, and the data genes in a neighbor list are its prefix.
+ *
+ * The network can be pruned to the part that can affect the candidates. Candidates are upstream
+ * data genes of the members and of their common downstream, hence only the edges from data genes
+ * are needed. Also, a node other than a data gene matters only if it can be a common downstream of
+ * two members, i.e. if it has at least two upstream data genes.
+ *
+ * @author Ozgun Babur
+ */
+public class CompiledNetwork implements Serializable
+{
+	/**
+	 * Names of the nodes.
+	 */
+	private final String[] names;
+
+	/**
+	 * Indices of the nodes.
+	 */
+	private final Map<String, Integer> index;
+
+	/**
+	 * Number of data genes, which are the nodes with the lowest indices.
+	 */
+	private final int dataCount;
+
+	private final int[] upStart;
+	private final int[] up;
+	private final int[] downStart;
+	private final int[] down;
+
+	/**
+	 * Sizes of the network before pruning.
+	 */
+	private int fullNodeCount;
+	private long fullEdgeCount;
+
+	private CompiledNetwork(String[] names, Map<String, Integer> index, int dataCount,
+		int[] upStart, int[] up, int[] downStart, int[] down)
+	{
+		this.names = names;
+		this.index = index;
+		this.dataCount = dataCount;
+		this.upStart = upStart;
+		this.up = up;
+		this.downStart = downStart;
+		this.down = down;
+	}
+
+	/**
+	 * Compiles the given graph.
+	 * @param dataGenes genes in the alteration data
+	 */
+	public static CompiledNetwork compile(DirectedGraph graph, Collection<String> dataGenes)
+	{
+		return compile(graph, dataGenes, false);
+	}
+
+	/**
+	 * Compiles the given graph, optionally pruning the parts that cannot affect the candidates.
+	 * @param dataGenes genes in the alteration data
+	 */
+	public static CompiledNetwork compile(DirectedGraph graph, Collection<String> dataGenes,
+		boolean prune)
+	{
+		CompiledNetwork net = compileFull(graph, dataGenes);
+		return prune ? net.prune() : net;
+	}
+
+	private static CompiledNetwork compileFull(DirectedGraph graph, Collection<String> dataGenes)
+	{
+		List<String> nodes = new ArrayList<>(new TreeSet<>(dataGenes));
+		int dataCount = nodes.size();
+
+		Set<String> others = new TreeSet<>(graph.getSymbols());
+		others.removeAll(dataGenes);
+		nodes.addAll(others);
+
+		Map<String, Integer> index = new HashMap<>();
+		for (int i = 0; i < nodes.size(); i++)
+		{
+			index.put(nodes.get(i), i);
+		}
+
+		// neighbors are read for every node, including the ones that are discovered as a neighbor
+		List<int[]> upRows = new ArrayList<>();
+		List<int[]> downRows = new ArrayList<>();
+		for (int i = 0; i < nodes.size(); i++)
+		{
+			upRows.add(toIndices(graph.getUpstream(nodes.get(i)), nodes, index));
+			downRows.add(toIndices(graph.getDownstream(nodes.get(i)), nodes, index));
+		}
+
+		int n = nodes.size();
+		int[] upStart = new int[n + 1];
+		int[] downStart = new int[n + 1];
+		for (int i = 0; i < n; i++)
+		{
+			upStart[i + 1] = upStart[i] + upRows.get(i).length;
+			downStart[i + 1] = downStart[i] + downRows.get(i).length;
+		}
+
+		int[] up = new int[upStart[n]];
+		int[] down = new int[downStart[n]];
+		for (int i = 0; i < n; i++)
+		{
+			System.arraycopy(upRows.get(i), 0, up, upStart[i], upRows.get(i).length);
+			System.arraycopy(downRows.get(i), 0, down, downStart[i], downRows.get(i).length);
+		}
+
+		CompiledNetwork net = new CompiledNetwork(nodes.toArray(new String[n]), index, dataCount,
+			upStart, up, downStart, down);
+		net.fullNodeCount = n;
+		net.fullEdgeCount = down.length;
+		return net;
+	}
+
+	/**
+	 * Gets the network that keeps only the edges from the data genes, to the data genes or to the
+	 * other nodes with at least two upstream data genes. Data genes keep their indices.
+	 */
+	private CompiledNetwork prune()
+	{
+		int n = names.length;
+
+		// nodes are kept if they are data genes, or if they have two upstream data genes
+		int[] newIndex = new int[n];
+		List<String> kept = new ArrayList<>(Arrays.asList(names).subList(0, dataCount));
+		for (int i = 0; i < n; i++)
+		{
+			if (i < dataCount) newIndex[i] = i;
+			else if (upStart[i + 1] - upStart[i] > 1 && up[upStart[i] + 1] < dataCount)
+			{
+				newIndex[i] = kept.size();
+				kept.add(names[i]);
+			}
+			else newIndex[i] = -1;
+		}
+
+		int m = kept.size();
+		int[] newUpStart = new int[m + 1];
+		int[] newDownStart = new int[m + 1];
+
+		// the kept edges are from the data genes to the kept nodes
+		for (int i = 0; i < dataCount; i++)
+		{
+			for (int j = downStart[i]; j < downStart[i + 1]; j++)
+			{
+				int t = newIndex[down[j]];
+				if (t >= 0)
+				{
+					newDownStart[i + 1]++;
+					newUpStart[t + 1]++;
+				}
+			}
+		}
+		for (int i = 0; i < m; i++)
+		{
+			newUpStart[i + 1] += newUpStart[i];
+			newDownStart[i + 1] += newDownStart[i];
+		}
+
+		int[] newUp = new int[newUpStart[m]];
+		int[] newDown = new int[newDownStart[m]];
+		int[] upPos = Arrays.copyOf(newUpStart, m);
+		int k = 0;
+
+		// sources are visited in ascending order, so the upstream rows are filled sorted, and the
+		// kept nodes are renumbered in the same order, so the downstream rows stay sorted
+		for (int i = 0; i < dataCount; i++)
+		{
+			for (int j = downStart[i]; j < downStart[i + 1]; j++)
+			{
+				int t = newIndex[down[j]];
+				if (t >= 0)
+				{
+					newDown[k++] = t;
+					newUp[upPos[t]++] = i;
+				}
+			}
+		}
+
+		Map<String, Integer> newIndexMap = new HashMap<>();
+		for (int i = 0; i < m; i++)
+		{
+			newIndexMap.put(kept.get(i), i);
+		}
+
+		CompiledNetwork net = new CompiledNetwork(kept.toArray(new String[m]), newIndexMap, dataCount,
+			newUpStart, newUp, newDownStart, newDown);
+		net.fullNodeCount = fullNodeCount;
+		net.fullEdgeCount = fullEdgeCount;
+		return net;
+	}
+
+	/**
+	 * Gets the sizes of the network, and how much of it is pruned.
+	 */
+	public String getReport()
+	{
+		long edges = down.length;
+		return String.format("Network: %d of %d nodes, %d of %d edges (%.1f%% of edges pruned)",
+			names.length, fullNodeCount, edges, fullEdgeCount,
+			fullEdgeCount == 0 ? 0 : 100.0 * (fullEdgeCount - edges) / fullEdgeCount);
+	}
+
+	/**
+	 * Converts the names to sorted indices. Names that are not indexed yet are added to the end.
+	 */
+	private static int[] toIndices(Set<String> names, List<String> nodes, Map<String, Integer> index)
+	{
+		int[] row = new int[names.size()];
+		int k = 0;
+		for (String name : names)
+		{
+			Integer i = index.get(name);
+			if (i == null)
+			{
+				i = nodes.size();
+				nodes.add(name);
+				index.put(name, i);
+			}
+			row[k++] = i;
+		}
+		Arrays.sort(row);
+		return row;
+	}
+
+	/**
+	 * Gets the number of nodes.
+	 */
+	public int size()
+	{
+		return names.length;
+	}
+
+	/**
+	 * Gets the number of data genes. Their indices are from 0 to this number.
+	 */
+	public int getDataGeneCount()
+	{
+		return dataCount;
+	}
+
+	/**
+	 * Gets the index of the given node, or -1 if it is not in the network.
+	 */
+	public int indexOf(String name)
+	{
+		Integer i = index.get(name);
+		return i == null ? -1 : i;
+	}
+
+	public String getName(int node)
+	{
+		return names[node];
+	}
+
+	/**
+	 * Gets the upstream of the node, in ascending order.
+	 */
+	public int[] getUpstream(int node)
+	{
+		return Arrays.copyOfRange(up, upStart[node], upStart[node + 1]);
+	}
+
+	/**
+	 * Gets the downstream of the node, in ascending order.
+	 */
+	public int[] getDownstream(int node)
+	{
+		return Arrays.copyOfRange(down, downStart[node], downStart[node + 1]);
+	}
+
+	/**
+	 * Gets the names of the given nodes.
+	 */
+	public Set<String> getNames(int[] nodes)
+	{
+		Set<String> set = new HashSet<>();
+		for (int node : nodes)
+		{
+			set.add(names[node]);
+		}
+		return set;
+	}
+
+	/**
+	 * Gets the common downstream of the given nodes, where each node is also considered in its own
+	 * downstream. Hence a node that is downstream of all others is also in the result.
+	 * @return indices of the common downstream, in ascending order
+	 */
+	public int[] getLinkedCommonDownstream(int[] nodes)
+	{
+		if (nodes.length == 0) return new int[0];
+
+		int[] common = getLinkedDownstream(nodes[0]);
+		for (int k = 1; k < nodes.length; k++)
+		{
+			common = retainLinkedDownstream(common, nodes[k]);
+		}
+		return common;
+	}
+
+	/**
+	 * Gets the downstream of the node with the node itself, in ascending order.
+	 */
+	public int[] getLinkedDownstream(int node)
+	{
+		int from = downStart[node];
+		int to = downStart[node + 1];
+		int pos = Arrays.binarySearch(down, from, to, node);
+		if (pos >= 0) return Arrays.copyOfRange(down, from, to);
+
+		pos = -pos - 1;
+		int[] row = new int[to - from + 1];
+		System.arraycopy(down, from, row, 0, pos - from);
+		row[pos - from] = node;
+		System.arraycopy(down, pos, row, pos - from + 1, to - pos);
+		return row;
+	}
+
+	/**
+	 * Intersects the given nodes with the downstream of the node and the node itself.
+	 * @param nodes nodes in ascending order, which are not modified
+	 * @return the intersection in ascending order
+	 */
+	public int[] retainLinkedDownstream(int[] nodes, int node)
+	{
+		int[] result = new int[nodes.length];
+		int size = 0;
+		for (int x : nodes)
+		{
+			if (x == node || Arrays.binarySearch(down, downStart[node], downStart[node + 1], x) >= 0)
+			{
+				result[size++] = x;
+			}
+		}
+		return size == result.length ? result : Arrays.copyOf(result, size);
+	}
+
+	/**
+	 * Gets the data genes that can expand a group with the given members. These are the common
+	 * downstream of the members, and the upstream of the members and of the common downstream.
+	 * Members are not included.
+	 * @param members indices of the members
+	 * @return bitset of the candidate data genes
+	 */
+	public long[] getCandidates(int[] members)
+	{
+		long[] upstream = new long[BitUtil.wordCount(dataCount)];
+		for (int m : members)
+		{
+			addDataUpstream(upstream, m);
+		}
+		return getCandidates(upstream, getLinkedCommonDownstream(members), members);
+	}
+
+	/**
+	 * Gets the candidate data genes from the neighborhood of the members.
+	 * @param upstream bitset of the upstream data genes of the members, which is not modified
+	 * @param commonDown linked common downstream of the members
+	 * @param members indices of the members
+	 * @return bitset of the candidate data genes
+	 */
+	public long[] getCandidates(long[] upstream, int[] commonDown, int[] members)
+	{
+		long[] cands = upstream.clone();
+
+		for (int c : commonDown)
+		{
+			if (c < dataCount) cands[c >>> 6] |= 1L << c;
+			addDataUpstream(cands, c);
+		}
+		for (int m : members)
+		{
+			if (m < dataCount) cands[m >>> 6] &= ~(1L << m);
+		}
+		return cands;
+	}
+
+	/**
+	 * Adds the upstream data genes of the node to the bitset.
+	 */
+	public void addDataUpstream(long[] bits, int node)
+	{
+		for (int i = upStart[node], to = upStart[node + 1]; i < to; i++)
+		{
+			int u = up[i];
+			// data genes are the prefix of the sorted row
+			if (u >= dataCount) break;
+			bits[u >>> 6] |= 1L << u;
+		}
+	}
+}
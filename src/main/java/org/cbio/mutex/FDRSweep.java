@@ -0,0 +1,217 @@
+package org.cbio.mutex;
+
+import java.util.*;
+
+/**
+ * Estimates false discovery rates of result scores using the scores of random runs. Result scores
+ * are sorted once, and the number of null scores that are less than or equal to each result score
+ * is found in a single merged pass over the null score sketch. After that, selection at any FDR threshold
+ * and the estimated FDR of each rank need no further pass over the null scores.
+ *
+ * The estimated FDR at rank i (0-based) is the expected number of false positives, which is the
+ * number of null scores less than or equal to the result score divided by the number of random
+ * runs, divided by i + 1. Selection at a threshold takes the results up to the last rank whose FDR
+ * is within the threshold, same as FDR.select.
+ *
+ * If the null scores are not all exact in the sketch, estimated FDRs may exceed their exact values
+ * by at most the amounts given by getFDRError.
+ *
+ * @author Ozgun Babur
+ */
+public class FDRSweep
+{
+	/**
+	 * FDR cutoffs that are tried for the best one are 1/FDR_STEPS, 2/FDR_STEPS, ... ,
+	 * FDR_STEP_COUNT/FDR_STEPS.
+	 */
+	public static final int FDR_STEPS = 100;
+	public static final int FDR_STEP_COUNT = 50;
+
+	/**
+	 * Normal quantile for 95% confidence intervals.
+	 */
+	private static final double Z_95 = 1.959964;
+
+	/**
+	 * Result keys, sorted by their scores. Smaller score is more significant.
+	 */
+	private final List<String> keys;
+
+	/**
+	 * Sorted result scores.
+	 */
+	private final double[] scores;
+
+	/**
+	 * Estimated FDR at each rank.
+	 */
+	private final double[] fdr;
+
+	/**
+	 * Maximum amount that the estimated FDR at each rank can exceed its exact value.
+	 */
+	private final double[] fdrError;
+
+	/**
+	 * Number of null scores that are less than or equal to the score at each rank.
+	 */
+	private final long[] counts;
+
+	private final int randMultiplier;
+
+	/**
+	 * Constructor with results and null scores.
+	 * @param results scores of the results
+	 * @param nullScores scores of random runs
+	 * @param randMultiplier number of random runs, which should be positive
+	 */
+	public FDRSweep(Map<String, Double> results, NullScoreSketch nullScores, int randMultiplier)
+	{
+		if (randMultiplier <= 0)
+		{
+			throw new IllegalArgumentException("Number of random runs should be positive: " +
+				randMultiplier);
+		}
+
+		keys = new ArrayList<>(results.keySet());
+		keys.sort(Comparator.comparing(results::get));
+
+		int n = keys.size();
+		scores = new double[n];
+		for (int i = 0; i < n; i++)
+		{
+			scores[i] = results.get(keys.get(i));
+		}
+
+		long[] errors = new long[n];
+		counts = nullScores.countAtMost(scores, errors);
+		this.randMultiplier = randMultiplier;
+
+		fdr = new double[n];
+		fdrError = new double[n];
+		for (int i = 0; i < n; i++)
+		{
+			double noise = counts[i] / (double) randMultiplier;
+			fdr[i] = noise / (i + 1);
+			fdrError[i] = (errors[i] / (double) randMultiplier) / (i + 1);
+		}
+	}
+
+	/**
+	 * Gets the result keys in the order of their scores.
+	 */
+	public List<String> getSortedKeys()
+	{
+		return Collections.unmodifiableList(keys);
+	}
+
+	/**
+	 * Gets the estimated FDR if the results are cut after the given rank.
+	 * @param rank index in the sorted keys
+	 */
+	public double getFDR(int rank)
+	{
+		return fdr[rank];
+	}
+
+	/**
+	 * Gets the maximum amount that the estimated FDR at the given rank can exceed its exact value.
+	 * @param rank index in the sorted keys
+	 */
+	public double getFDRError(int rank)
+	{
+		return fdrError[rank];
+	}
+
+	/**
+	 * Gets the half width of the 95% confidence interval of the estimated FDR at the given rank.
+	 * The number of null scores below a cutoff is approximated as a Poisson count, whose variance
+	 * is its mean. One is added to the count so that the interval does not vanish when there are no
+	 * null scores below the cutoff yet. The possible overestimation of a sketch is also included.
+	 * @param rank index in the sorted keys
+	 */
+	public double getConfidenceHalfWidth(int rank)
+	{
+		return (Z_95 * Math.sqrt(counts[rank] + 1) / randMultiplier) / (rank + 1) + fdrError[rank];
+	}
+
+	/**
+	 * Decides the FDR cutoff that maximizes the difference of expected true positives and false
+	 * positives, among the tried cutoffs. Ties are resolved in favor of the larger cutoff.
+	 */
+	public double getBestFDR()
+	{
+		int[] sizes = getSelectionSizes(FDR_STEPS, FDR_STEP_COUNT);
+
+		double bestFDR = -1;
+		double maxScore = -Double.MAX_VALUE;
+		for (int i = 1; i <= FDR_STEP_COUNT; i++)
+		{
+			double fdr = i / (double) FDR_STEPS;
+			double score = sizes[i - 1] * (1 - fdr) - sizes[i - 1] * fdr;
+			if (score >= maxScore)
+			{
+				maxScore = score;
+				bestFDR = fdr;
+			}
+		}
+		return bestFDR;
+	}
+
+	/**
+	 * Gets the number of results to select for the given FDR threshold.
+	 */
+	public int getSelectionSize(double fdrThr)
+	{
+		for (int i = fdr.length - 1; i >= 0; i--)
+		{
+			if (fdr[i] <= fdrThr) return i + 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * Selects the results for the given FDR threshold.
+	 */
+	public List<String> select(double fdrThr)
+	{
+		return new ArrayList<>(keys.subList(0, getSelectionSize(fdrThr)));
+	}
+
+	/**
+	 * Gets the selection sizes for the thresholds 1/steps, 2/steps, ... , maxCnt/steps, in one pass
+	 * over the ranks.
+	 * @param steps denominator of the thresholds
+	 * @param maxCnt number of thresholds
+	 * @return selection size of each threshold, at index (numerator - 1)
+	 */
+	public int[] getSelectionSizes(int steps, int maxCnt)
+	{
+		int[] size = new int[maxCnt];
+		for (int i = 0; i < fdr.length; i++)
+		{
+			// smallest threshold that this rank satisfies
+			int k = (int) Math.ceil(fdr[i] * steps);
+			if (k < 1) k = 1;
+			while (k > 1 && fdr[i] <= (k - 1) / (double) steps) k--;
+			while (k <= maxCnt && fdr[i] > k / (double) steps) k++;
+
+			if (k <= maxCnt) size[k - 1] = i + 1;
+		}
+
+		// a rank that satisfies a threshold also satisfies the larger ones
+		for (int k = 1; k < maxCnt; k++)
+		{
+			if (size[k] < size[k - 1]) size[k] = size[k - 1];
+		}
+		return size;
+	}
+
+	/**
+	 * Gets the score at the given rank.
+	 */
+	public double getScore(int rank)
+	{
+		return scores[rank];
+	}
+}
@@ -0,0 +1,221 @@
+package org.cbio.mutex;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Fisher's exact test for mutual exclusivity, specialized for a fixed sample size. The p-value is
+ * the lower tail of the hypergeometric distribution, which is the probability of observing an
+ * overlap less than or equal to the observed one.
+ *
+ * Log-factorials are calculated once per sample size, and the tail is summed using the ratio of
+ * consecutive terms, so that only one exponential is evaluated per p-value. Log-factorials are kept
+ * with their rounding errors, and they are added with compensation, because they are large numbers
+ * that mostly cancel each other. Summation starts from
+ * the observed overlap and continues towards the far end, stopping when the remaining terms cannot
+ * change the result. If the observed overlap is above the mode, the upper tail is summed instead,
+ * and subtracted from 1.
+ *
+ * @author Ozgun Babur
+ */
+public class FastFisher
+{
+	/**
+	 * Summation stops when the last term is smaller than the sum times this number. Terms decrease
+	 * faster than a geometric series after this point, so the ignored part is also this small.
+	 */
+	private static final double PRECISION = 1E-17;
+
+	/**
+	 * Instances per sample size.
+	 */
+	private static final ConcurrentMap<Integer, FastFisher> INSTANCES = new ConcurrentHashMap<>();
+
+	/**
+	 * Cache of calculated p-values, shared by all sample sizes. Null if caching is disabled.
+	 */
+	private static volatile PvalCache cache;
+
+	/**
+	 * Sample size.
+	 */
+	private final int n;
+
+	/**
+	 * Log-factorials of numbers from 0 to n.
+	 */
+	private final double[] logFact;
+
+	/**
+	 * Rounding errors of the log-factorials.
+	 */
+	private final double[] logFactErr;
+
+	/**
+	 * Constructor with the sample size.
+	 */
+	private FastFisher(int n)
+	{
+		this.n = n;
+		this.logFact = new double[n + 1];
+		this.logFactErr = new double[n + 1];
+		for (int i = 2; i <= n; i++)
+		{
+			double log = Math.log(i);
+			logFact[i] = logFact[i - 1] + log;
+			logFactErr[i] = logFactErr[i - 1] + (logFact[i - 1] - logFact[i]) + log;
+		}
+	}
+
+	/**
+	 * Gets the test for the given sample size.
+	 */
+	public static FastFisher get(int n)
+	{
+		FastFisher ff = INSTANCES.get(n);
+		if (ff == null) ff = INSTANCES.computeIfAbsent(n, FastFisher::new);
+		return ff;
+	}
+
+	/**
+	 * Sets the p-value cache to use. Null disables caching.
+	 */
+	public static void setCache(PvalCache cache)
+	{
+		FastFisher.cache = cache;
+	}
+
+	public static PvalCache getCache()
+	{
+		return cache;
+	}
+
+	public int getSampleSize()
+	{
+		return n;
+	}
+
+	/**
+	 * Probability of observing exactly the given overlap. Log-factorials of the hypergeometric
+	 * probability are added with a compensated sum, kept in two local variables.
+	 */
+	private double prob(int a, int b, int k)
+	{
+		double sum = 0;
+		double err = 0;
+		for (int i = 0; i < 9; i++)
+		{
+			int x = getFactorialArg(i, a, b, k);
+
+			// first four factorials are in the numerator
+			double v = i < 4 ? logFact[x] : -logFact[x];
+			double t = sum + v;
+			err += (Math.abs(sum) >= Math.abs(v) ? (sum - t) + v : (v - t) + sum) +
+				(i < 4 ? logFactErr[x] : -logFactErr[x]);
+			sum = t;
+		}
+		return Math.exp(sum + err);
+	}
+
+	/**
+	 * Gets the number whose factorial is the i-th term of the hypergeometric probability.
+	 */
+	private int getFactorialArg(int i, int a, int b, int k)
+	{
+		switch (i)
+		{
+			case 0: return a;
+			case 1: return n - a;
+			case 2: return b;
+			case 3: return n - b;
+			case 4: return n;
+			case 5: return k;
+			case 6: return a - k;
+			case 7: return b - k;
+			default: return n - a - b + k;
+		}
+	}
+
+	/**
+	 * Calculates the p-value of mutual exclusivity.
+	 * @param a altered sample count of the first gene
+	 * @param b altered sample count of the second gene
+	 * @param k number of samples that both genes are altered
+	 * @return p-value
+	 */
+	public double calcDeficiencyPval(int a, int b, int k)
+	{
+		PvalCache c = cache;
+		if (c == null) return calculate(a, b, k);
+
+		long key = PvalCache.key(n, a, b, k);
+		if (key < 0) return calculate(a, b, k);
+
+		double pval = c.get(key);
+		if (Double.isNaN(pval))
+		{
+			long start = System.nanoTime();
+			pval = calculate(a, b, k);
+			c.put(key, pval, System.nanoTime() - start);
+		}
+		return pval;
+	}
+
+	/**
+	 * Calculates the p-value without using the cache.
+	 */
+	private double calculate(int a, int b, int k)
+	{
+		int min = Math.max(0, a + b - n);
+		int max = Math.min(a, b);
+
+		if (k >= max) return 1;
+		if (k < min) return 0;
+
+		int mode = (int) (((a + 1) * (long) (b + 1)) / (n + 2));
+
+		if (k < mode)
+		{
+			// lower tail, from k down to min
+			double term = prob(a, b, k);
+			double sum = term;
+			for (int i = k; i > min; i--)
+			{
+				term *= i * (double) (n - a - b + i) / ((a - i + 1) * (double) (b - i + 1));
+				sum += term;
+				if (term < sum * PRECISION) break;
+			}
+			return sum;
+		}
+		else
+		{
+			// upper tail, from k + 1 up to max
+			double term = prob(a, b, k + 1);
+			double sum = term;
+			for (int i = k + 1; i < max; i++)
+			{
+				term *= (a - i) * (double) (b - i) / ((i + 1) * (double) (n - a - b + i + 1));
+				sum += term;
+				if (term < sum * PRECISION) break;
+			}
+			return Math.max(0, 1 - sum);
+		}
+	}
+
+	/**
+	 * Calculates the p-values of mutual exclusivity for multiple gene pairs, such as each member of
+	 * a group against the rest of the group.
+	 * @param a altered sample counts of the first genes
+	 * @param b altered sample counts of the second genes
+	 * @param k overlap counts
+	 * @param size number of pairs to calculate
+	 * @param pvals array to write the p-values
+	 */
+	public void calcDeficiencyPvals(int[] a, int[] b, int[] k, int size, double[] pvals)
+	{
+		for (int i = 0; i < size; i++)
+		{
+			pvals[i] = calcDeficiencyPval(a[i], b[i], k[i]);
+		}
+	}
+}
@@ -8,6 +8,13 @@ import java.util.*;
 
 /**
  * A gene alteration data.
+ *
+ * The observed alterations of a gene do not change after construction, hence genes can be shared
+ * between threads. Randomizations work on permuted views of genes. A view shares the alteration
+ * codes and the sample types of the gene it is created from, but has its own bitset of altered
+ * samples and its own null distribution. A view is owned by the thread, or the random run, that
+ * created it.
+ *
  * @author Ozgun Babur
  */
 public class GeneAlt implements Cloneable, Serializable
@@ -15,22 +22,23 @@ public class GeneAlt implements Cloneable, Serializable
 	/**
 	 * Gene ID.
 	 */
-	String id;
+	final String id;
 
 	/**
-	 * The array of alterations.
+	 * The array of observed alterations. Views share this array, and their permutations are not
+	 * reflected here.
 	 */
-	int[] alterations;
+	final int[] alterations;
 
 	/**
-	 * Changes array shuffled in a sticky way.
+	 * Changes packed in a bitset, one bit per sample. Permuted if this is a view.
 	 */
-	public boolean[] shuf;
+	final long[] bits;
 
 	/**
-	 * Changes array as booleans.
+	 * Whether this is a permuted view of a gene.
 	 */
-	boolean[] ch;
+	private final boolean view;
 
 	/**
 	 * If present, mapping of types to the indices in the alteration array.
@@ -38,26 +46,27 @@ public class GeneAlt implements Cloneable, Serializable
 	private Map<String, int[]> typeMap;
 
 	/**
-	 * If present, subsets of the alteration array divided to types.
+	 * If present, the types whose samples are not uniformly altered or unaltered. Only these types
+	 * change during a shuffle.
 	 */
-	private Map<String, boolean[]> typeAlts;
+	private List<String> typesToShuffle;
 
 	/**
-	 * Count of altered samples.
+	 * Altered sample counts of the types to shuffle, in the same order.
 	 */
-	private int altCnt;
+	private int[] typeAltCnts;
 
 	/**
-	 * This is the estimated null distribution of p-values.
+	 * Count of altered samples. Shuffling does not change this value.
 	 */
-	List<Double> randScores;
+	private final int altCnt;
 
 	/**
-	 * This is the estimated null distribution of group scores with this gene.
+	 * This is the estimated null distribution of p-values.
 	 */
-	private List<Double> randScoresSave;
+	volatile NullDist randScores;
 
-	private static final long serialVersionUID = 2664760285698573701L;
+	private static final long serialVersionUID = 2664760285698573702L;
 
 	/**
 	 * Constructor with parameters.
@@ -76,6 +85,58 @@ public class GeneAlt implements Cloneable, Serializable
 				throw e;
 			}
 		}
+		this.bits = toBits(alterations);
+		this.altCnt = BitUtil.count(bits);
+		this.view = false;
+	}
+
+	/**
+	 * Constructor with the ID and the alteration codes.
+	 */
+	GeneAlt(String id, int[] alterations)
+	{
+		this.id = id;
+		this.alterations = alterations;
+		this.bits = toBits(alterations);
+		this.altCnt = BitUtil.count(bits);
+		this.view = false;
+	}
+
+	/**
+	 * Constructor with the ID, the alteration codes, and the bitset of the altered samples in the
+	 * codes.
+	 */
+	GeneAlt(String id, int[] alterations, long[] bits)
+	{
+		this.id = id;
+		this.alterations = alterations;
+		this.bits = bits;
+		this.altCnt = BitUtil.count(bits);
+		this.view = false;
+	}
+
+	/**
+	 * Constructor for a view of the given gene with the given alterations bitset.
+	 */
+	private GeneAlt(GeneAlt gene, long[] bits)
+	{
+		this.id = gene.id;
+		this.alterations = gene.alterations;
+		this.typeMap = gene.typeMap;
+		this.altCnt = gene.altCnt;
+		this.bits = bits;
+		this.view = true;
+	}
+
+	private static long[] toBits(int[] alterations)
+	{
+		long[] bits = new long[BitUtil.wordCount(alterations.length)];
+
+		for (int i = 0; i < alterations.length; i++)
+		{
+			if (alterations[i] != 0) bits[i >>> 6] |= 1L << i;
+		}
+		return bits;
 	}
 
 	/**
@@ -84,38 +145,37 @@ public class GeneAlt implements Cloneable, Serializable
 	 */
 	public boolean[] getBooleanChangesCopy()
 	{
-		boolean[] ch = getBooleanChanges();
-		boolean[] cop = new boolean[ch.length];
-		System.arraycopy(ch, 0, cop, 0, ch.length);
-		return cop;
+		return getBooleanChanges();
 	}
 
 	/**
-	 * Gets the sample values in a boolean array.
+	 * Gets the sample values in a boolean array. The array is unpacked from the bitset at each
+	 * call, hence modifying it does not affect this object. Use getBits in performance critical
+	 * code.
 	 * @return changes in a boolean array
 	 */
 	public boolean[] getBooleanChanges()
 	{
-		if (ch == null)
-		{
-			if (shuf == null)
-			{
-				ch = new boolean[alterations.length];
+		return BitUtil.unpack(getBits(), alterations.length);
+	}
 
-				for (int i = 0; i < ch.length; i++)
-				{
-					ch[i] = alterations[i] != 0;
-				}
-			}
-			else
-			{
-				ch = new boolean[shuf.length];
-				System.arraycopy(shuf, 0, ch, 0, ch.length);
-			}
-			altCnt = ArrayUtil.countValue(ch, true);
-		}
+	/**
+	 * Gets the sample values packed in a bitset.
+	 * @return changes in a bitset
+	 */
+	public long[] getBits()
+	{
+		return bits;
+	}
 
-		return ch;
+	/**
+	 * Checks if the given sample is altered.
+	 * @param sample index of the sample
+	 * @return true if altered
+	 */
+	public boolean isAltered(int sample)
+	{
+		return BitUtil.get(getBits(), sample);
 	}
 
 	public boolean[] getMutated()
@@ -151,7 +211,6 @@ public class GeneAlt implements Cloneable, Serializable
 
 	public int getAltCnt()
 	{
-		getBooleanChanges();
 		return altCnt;
 	}
 
@@ -209,7 +268,7 @@ public class GeneAlt implements Cloneable, Serializable
 	 */
 	public double getAlteredRatio()
 	{
-		return Math.round((countAltered() / (double) getBooleanChanges().length) * 1E10) / 1E10;
+		return Math.round((countAltered() / (double) alterations.length) * 1E10) / 1E10;
 	}
 
 	/**
@@ -218,7 +277,7 @@ public class GeneAlt implements Cloneable, Serializable
 	 */
 	public int countAltered()
 	{
-		return ArrayUtil.countValue(getBooleanChanges(), true);
+		return getAltCnt();
 	}
 
 	public String getPrint(List<Integer> order)
@@ -242,89 +301,135 @@ public class GeneAlt implements Cloneable, Serializable
 		return buf.toString();
 	}
 
-	public void shuffle(Random r)
+	/**
+	 * Checks if this is a permuted view of a gene.
+	 */
+	public boolean isView()
 	{
+		return view;
+	}
+
+	/**
+	 * Gets a view of this gene where altered samples are randomly permuted, within sample types
+	 * if types are set. The view does not have a null distribution.
+	 * @param r random number generator
+	 * @return permuted view
+	 */
+	public GeneAlt getShuffledView(Random r)
+	{
+		GeneAlt copy = new GeneAlt(this, bits.clone());
+		copy.reshuffle(r);
+		return copy;
+	}
+
+	/**
+	 * Permutes the altered samples of this view again. The result depends only on the random
+	 * numbers, and not on the previous permutation. Only the owner of the view should call this
+	 * method.
+	 * @param r random number generator
+	 */
+	void reshuffle(Random r)
+	{
+		if (!view) throw new IllegalStateException("Only views can be shuffled. Gene = " + id);
+
 		if (typeMap == null)
 		{
-			boolean[] ch = getBooleanChanges();
-			ArrayUtil.shuffle(ch, r);
+			// Floyd's sampling of a random subset with the same size
+			Arrays.fill(bits, 0);
+			int n = alterations.length;
+			for (int j = n - altCnt; j < n; j++)
+			{
+				int t = r.nextInt(j + 1);
+				BitUtil.set(bits, BitUtil.get(bits, t) ? j : t, true);
+			}
 		}
 		else
 		{
-			if (typeAlts == null)
+			if (typesToShuffle == null)
 			{
-				boolean[] ch = getBooleanChanges();
-				typeAlts = new HashMap<>();
+				List<String> types = new ArrayList<>();
+				List<Integer> cnts = new ArrayList<>();
 				typeMap.keySet().forEach(t ->
 				{
 					int[] ind = typeMap.get(t);
 					boolean[] b = new boolean[ind.length];
 					for (int i = 0; i < ind.length; i++)
 					{
-						b[i] = ch[ind[i]];
+						b[i] = BitUtil.get(bits, ind[i]);
 					}
 
-					if (!ArrayUtil.isUniform(b)) typeAlts.put(t, b);
+					if (!ArrayUtil.isUniform(b))
+					{
+						types.add(t);
+						cnts.add(Summary.countTrue(b));
+					}
 				});
+				typeAltCnts = cnts.stream().mapToInt(Integer::intValue).toArray();
+				typesToShuffle = types;
 			}
 
-			typeAlts.keySet().forEach(t ->
+			// Floyd's sampling within each type, with the altered sample count of the type
+			for (int k = 0; k < typesToShuffle.size(); k++)
 			{
-				boolean[] val = typeAlts.get(t);
-				ArrayUtil.shuffle(val, r);
-				int[] ind = typeMap.get(t);
-				for (int i = 0; i < val.length; i++)
+				int[] ind = typeMap.get(typesToShuffle.get(k));
+				for (int i : ind)
 				{
-					ch[ind[i]] = val[i];
+					BitUtil.set(bits, i, false);
 				}
-			});
+				int n = ind.length;
+				for (int j = n - typeAltCnts[k]; j < n; j++)
+				{
+					int t = r.nextInt(j + 1);
+					BitUtil.set(bits, BitUtil.get(bits, ind[t]) ? ind[j] : ind[t], true);
+				}
+			}
 		}
 	}
 
 	/**
-	 * Beware. There is no un-shuffle of this operation.
+	 * Gets a new gene where the alteration codes are permuted. Unlike views, the result is a gene
+	 * on its own, with observed alterations being the permuted ones.
+	 * @param r random number generator
+	 * @return gene with permuted alterations
 	 */
-	public void shufflePermanent()
+	public GeneAlt getPermanentlyShuffled(Random r)
 	{
 		Integer[] arr = new Integer[alterations.length];
 		for (int i = 0; i < arr.length; i++)
 		{
 			arr[i] = alterations[i];
 		}
-		Collections.shuffle(Arrays.asList(arr));
+		Collections.shuffle(Arrays.asList(arr), r);
+		int[] alts = new int[arr.length];
 		for (int i = 0; i < arr.length; i++)
 		{
-			alterations[i] = arr[i];
+			alts[i] = arr[i];
 		}
-		ch = null;
+		GeneAlt gene = new GeneAlt(id, alts);
+		gene.typeMap = typeMap;
+		return gene;
 	}
 
-	public void unshuffle()
-	{
-		ch = null;
-		typeAlts = null;
-	}
-
-	public void unshuffleSticky()
+	/**
+	 * Gets a key that describes what a shuffling of this gene can produce. Two genes with the same
+	 * key have the same distribution of shuffled alterations. This is the number of altered samples,
+	 * and the number of altered samples in each type if types are used.
+	 */
+	String getShuffleKey()
 	{
-		shuf = null;
-		ch = null;
-		typeAlts = null;
-		randScores = randScoresSave;
-		randScoresSave = null;
-	}
+		if (typeMap == null) return String.valueOf(altCnt);
 
-	public void shuffleSticky()
-	{
-		if (randScoresSave != null) throw new RuntimeException("The method shuffleSticky cannot " +
-			"be called while a previous call exists. Please call unshuffleSticky before calling" +
-			"this method second time.");
-
-		shuffle(new Random());
-		shuf = new boolean[ch.length];
-		System.arraycopy(ch, 0, shuf, 0, ch.length);
-		randScoresSave = randScores;
-		randScores = null;
+		StringBuilder sb = new StringBuilder().append(altCnt);
+		typeMap.keySet().stream().sorted().forEach(t ->
+		{
+			int cnt = 0;
+			for (int i : typeMap.get(t))
+			{
+				if (BitUtil.get(bits, i)) cnt++;
+			}
+			sb.append(" ").append(t).append(":").append(cnt);
+		});
+		return sb.toString();
 	}
 
 	@Override
@@ -334,23 +439,16 @@ public class GeneAlt implements Cloneable, Serializable
 	}
 
 	/**
-	 * Random permutation scores sorted ascending. Smaller score is more significant.
+	 * Sets the null distribution of initial p-values. Smaller score is more significant.
 	 * @param randScores
 	 */
-	public void setRandScores(List<Double> randScores)
+	public void setRandScores(NullDist randScores)
 	{
 		this.randScores = randScores;
 	}
 
 	public double getPvalOfScore(double score)
 	{
-		int i = 0;
-		for (double randScore : randScores)
-		{
-			if (randScore <= score) i++;
-			else break;
-		}
-
-		return i / (double) randScores.size();
+		return randScores.getPvalOfScore(score);
 	}
 }
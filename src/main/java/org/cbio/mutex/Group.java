@@ -4,7 +4,6 @@ import org.panda.utility.ArrayUtil;
 import org.panda.utility.FormatUtil;
 import org.panda.utility.graph.DirectedGraph;
 import org.panda.utility.graph.Graph;
-import org.panda.utility.statistics.FishersExactTest;
 import org.panda.utility.statistics.Overlap;
 
 import java.io.*;
@@ -16,7 +15,7 @@ import java.util.*;
  */
 public class Group implements Serializable
 {
-	private static final long serialVersionUID = 374555033512864697L;
+	private static final long serialVersionUID = 374555033512864698L;
 
 	/**
 	 * Genes in the group.
@@ -40,9 +39,52 @@ public class Group implements Serializable
 	 */
 	Set<GeneAlt> seedGenes;
 
-	Map<GeneAlt, boolean[]> overlaps;
+	/**
+	 * For each member, the samples that are also altered by another member, packed in a bitset.
+	 */
+	Map<GeneAlt, long[]> overlaps;
+
+	/**
+	 * Samples altered by any member, packed in a bitset.
+	 */
+	long[] merge;
+
+	/**
+	 * Number of samples.
+	 */
+	int sampleSize;
+
+	/**
+	 * Reused buffers for p-value calculations.
+	 */
+	private transient double[] pvals1, pvals2;
+
+	/**
+	 * Reused buffers for the counts of Fisher's exact tests.
+	 */
+	private transient int[] a1s, a2s, ovs;
+
+	/**
+	 * The compiled network that the neighborhood of the members is kept on. Null if not used.
+	 */
+	private transient CompiledNetwork network;
+
+	/**
+	 * Indices of the members in the network.
+	 */
+	private transient int[] nodes;
 
-	boolean[] merge;
+	/**
+	 * Common downstream of the members in the network, where each member is also in its own
+	 * downstream, in ascending order. Intersected with the downstream of each new member.
+	 */
+	private transient int[] commonDown;
+
+	/**
+	 * Upstream data genes of the members in the network, packed in a bitset. Extended with the
+	 * upstream of each new member.
+	 */
+	private transient long[] upstream;
 
 	/**
 	 * Constructor with the seed gene.
@@ -61,7 +103,7 @@ public class Group implements Serializable
 	{
 		members = new ArrayList<GeneAlt>();
 		black = new HashSet<GeneAlt>();
-		overlaps = new HashMap<GeneAlt, boolean[]>();
+		overlaps = new HashMap<GeneAlt, long[]>();
 	}
 
 	/**
@@ -70,48 +112,72 @@ public class Group implements Serializable
 	 */
 	public Map<String, Double> calcPVals1()
 	{
-		Map<String, Double> pvals = new HashMap<String, Double>();
+		return toMap(calcPVals1Array());
+	}
+
+	/**
+	 * Calculates p-values for each gene in the group into a reused buffer. Members are at their
+	 * index in the members list, and the candidate, if exists, is after the last member. The
+	 * returned array is overwritten by the next call, and it may be longer than pvalCount().
+	 * @return p-values
+	 */
+	public double[] calcPVals1Array()
+	{
+		double[] pvals = pvals1 = ensureCapacity(pvals1);
 
 		if (candidate == null)
 		{
 			if (members.size() == 1)
 			{
-				pvals.put(members.get(0).getId(), 1D);
+				pvals[0] = 1;
 			}
 			else
 			{
-				int mergeCnt = ArrayUtil.countValue(merge, true);
+				ensureCountBuffers();
+				int mergeCnt = BitUtil.count(merge);
 
-				for (GeneAlt member : members)
+				for (int i = 0; i < members.size(); i++)
 				{
-					int ov = ArrayUtil.countValue(overlaps.get(member), true);
+					GeneAlt member = members.get(i);
+					int ov = BitUtil.count(overlaps.get(member));
 					int a1 = member.getAltCnt();
 					int a2 = mergeCnt - a1 + ov;
 
 //					double pval = Overlap.calcMutexPval(merge.length, ov, a1, a2);
-					double pval = FishersExactTest.calcDeficiencyPval(merge.length, a1, a2, ov);
-					pvals.put(member.getId(), pval);
+					a1s[i] = a1;
+					a2s[i] = a2;
+					ovs[i] = ov;
 				}
+
+				FastFisher.get(sampleSize).calcDeficiencyPvals(a1s, a2s, ovs, members.size(), pvals);
 			}
 		}
 		else
 		{
-			boolean[] cch = candidate.getBooleanChanges();
-			int a2_pre = countMergeWithCandidate(cch);
+			ensureCountBuffers();
+			long[] cch = candidate.getBits();
+			int a2_pre = BitUtil.countOr(merge, cch);
 
-			for (GeneAlt member : members)
+			for (int i = 0; i < members.size(); i++)
 			{
-				int ov = countOverlapWithCandidate(overlaps.get(member), member.getBooleanChanges(), cch);
+				GeneAlt member = members.get(i);
+				int ov = BitUtil.countOrAnd(overlaps.get(member), member.getBits(), cch);
 				int a1 = member.getAltCnt();
 				int a2 = a2_pre - a1 + ov;
 
 //				double pval = Overlap.calcMutexPval(merge.length, ov, a1, a2);
-				double pval = FishersExactTest.calcDeficiencyPval(merge.length, a1, a2, ov);
-				pvals.put(member.getId(), pval);
+				a1s[i] = a1;
+				a2s[i] = a2;
+				ovs[i] = ov;
 			}
 
 //			pvals.put(candidate.getId(), Overlap.calcMutexPval(cch, merge));
-			pvals.put(candidate.getId(), FishersExactTest.calcDeficiencyPval(cch, merge));
+			int i = members.size();
+			a1s[i] = candidate.getAltCnt();
+			a2s[i] = BitUtil.count(merge);
+			ovs[i] = BitUtil.countAnd(cch, merge);
+
+			FastFisher.get(sampleSize).calcDeficiencyPvals(a1s, a2s, ovs, i + 1, pvals);
 		}
 
 		return pvals;
@@ -122,50 +188,85 @@ public class Group implements Serializable
 	 */
 	public Map<String, Double> calcPVals2(Map<String, Double> pvals1)
 	{
-		if (pvals1 == null) pvals1 = calcPVals1();
+		double[] p1 = pvals1 == null ? calcPVals1Array() : toArray(pvals1);
+		return toMap(calcPVals2Array(p1));
+	}
 
-		Map<String, Double> pvals2 = new HashMap<String, Double>();
+	/**
+	 * Calculates multiple-hypothesis-corrected p-values for each gene in the group into a reused
+	 * buffer, using the same indexing with calcPVals1Array.
+	 * @param p1 initial p-values
+	 * @return corrected p-values
+	 */
+	public double[] calcPVals2Array(double[] p1)
+	{
+		double[] pvals = pvals2 = ensureCapacity(pvals2);
 
-		for (GeneAlt member : members)
+		int cnt = pvalCount();
+		for (int i = 0; i < cnt; i++)
 		{
-			pvals2.put(member.getId(), member.getPvalOfScore(pvals1.get(member.getId())));
+			pvals[i] = Math.max(p1[i], getPvalGene(i).getPvalOfScore(p1[i]));
 		}
-		if (candidate != null)
-			pvals2.put(candidate.getId(), candidate.getPvalOfScore(pvals1.get(candidate.getId())));
+		return pvals;
+	}
+
+	/**
+	 * Gets the number of values in the p-value arrays.
+	 */
+	public int pvalCount()
+	{
+		return candidate == null ? members.size() : members.size() + 1;
+	}
+
+	/**
+	 * Gets the gene at the given index of p-value arrays.
+	 */
+	private GeneAlt getPvalGene(int index)
+	{
+		return index < members.size() ? members.get(index) : candidate;
+	}
 
-		for (String gene : pvals2.keySet())
+	private double[] ensureCapacity(double[] buf)
+	{
+		return buf == null || buf.length < members.size() + 1 ? new double[members.size() + 1] : buf;
+	}
+
+	private void ensureCountBuffers()
+	{
+		if (a1s == null || a1s.length < members.size() + 1)
 		{
-			if (pvals1.get(gene) > pvals2.get(gene)) pvals2.put(gene, pvals1.get(gene));
+			a1s = new int[members.size() + 1];
+			a2s = new int[members.size() + 1];
+			ovs = new int[members.size() + 1];
 		}
-
-		return pvals2;
 	}
 
-	private int countOverlapWithCandidate(boolean[] mov, boolean[] mch, boolean[] cch)
+	private Map<String, Double> toMap(double[] pvals)
 	{
-		int cnt = 0;
-		for (int i = 0; i < mov.length; i++)
+		Map<String, Double> map = new HashMap<String, Double>();
+		int cnt = pvalCount();
+		for (int i = 0; i < cnt; i++)
 		{
-			if (mov[i] || (mch[i] && cch[i])) cnt++;
+			map.put(getPvalGene(i).getId(), pvals[i]);
 		}
-		return cnt;
+		return map;
 	}
 
-	private int countMergeWithCandidate(boolean[] cch)
+	private double[] toArray(Map<String, Double> pvals)
 	{
-		int cnt = 0;
-		for (int i = 0; i < cch.length; i++)
+		double[] arr = new double[pvalCount()];
+		for (int i = 0; i < arr.length; i++)
 		{
-			if (merge[i] || cch[i]) cnt++;
+			arr[i] = pvals.get(getPvalGene(i).getId());
 		}
-		return cnt;
+		return arr;
 	}
 
 	public double calcScore()
 	{
 		if (size() == 1 && candidate == null) return 1;
 
-		return getMaxValue(calcPVals1());
+		return getMaxValue(calcPVals1Array(), pvalCount());
 	}
 
 	/**
@@ -183,6 +284,18 @@ public class Group implements Serializable
 		return pv;
 	}
 
+	/**
+	 * Gets the maximum of the first len values in the given array.
+	 */
+	public static double getMaxValue(double[] pvals, int len)
+	{
+		double pv = 0;
+		for (int i = 0; i < len; i++)
+		{
+			if (pvals[i] > pv) pv = pvals[i];
+		}
+		return pv;
+	}
 
 	/**
 	 * Assuming the given gene is added to the group, calculates the new score for the group.
@@ -206,6 +319,20 @@ public class Group implements Serializable
 		return vals;
 	}
 
+	/**
+	 * Assuming the given gene is added to the group, calculates its p-values into the reused
+	 * buffer of calcPVals1Array. The candidate is at the index equal to the current size.
+	 * @param gene gene alteration to consider
+	 * @return p-values
+	 */
+	public double[] calcFuturePvals1Array(GeneAlt gene)
+	{
+		this.candidate = gene;
+		double[] vals = calcPVals1Array();
+		this.candidate = null;
+		return vals;
+	}
+
 	/**
 	 * Assuming the given gene is added to the group, calculates the new pval for the group.
 	 * Does not modify the group.
@@ -222,7 +349,7 @@ public class Group implements Serializable
 
 	public double calcFinalScore()
 	{
-		return getMaxValue(calcPVals2(null));
+		return getMaxValue(calcPVals2Array(calcPVals1Array()), pvalCount());
 	}
 
 	/**
@@ -236,37 +363,71 @@ public class Group implements Serializable
 
 		updateOverlaps(gene);
 		members.add(gene);
+		if (network != null) addToNeighborhood(gene);
 	}
 
-	public void updateOverlaps(GeneAlt gene)
+	/**
+	 * Keeps the network neighborhood of the members up to date on the given network, starting with
+	 * the current members. Does nothing if it is already kept on the same network.
+	 */
+	public void useNetwork(CompiledNetwork network)
 	{
-		boolean[] gch = gene.getBooleanChanges();
-		boolean[] gov = new boolean[gch.length];
+		if (this.network == network) return;
 
+		this.network = network;
+		nodes = new int[0];
+		commonDown = null;
+		upstream = new long[BitUtil.wordCount(network.getDataGeneCount())];
 		for (GeneAlt member : members)
 		{
-			boolean[] ov = overlaps.get(member);
-			boolean[] mch = member.getBooleanChanges();
+			addToNeighborhood(member);
+		}
+	}
 
-			for (int i = 0; i < ov.length; i++)
-			{
-				if (gch[i] && mch[i] && !ov[i]) ov[i] = true;
+	/**
+	 * Updates the network neighborhood with the new member, in time proportional to its degree and
+	 * to the size of the common downstream.
+	 */
+	private void addToNeighborhood(GeneAlt gene)
+	{
+		int node = network.indexOf(gene.getId());
+		nodes = Arrays.copyOf(nodes, nodes.length + 1);
+		nodes[nodes.length - 1] = node;
 
-				if (gch[i] && merge[i]) gov[i] = true;
-			}
+		network.addDataUpstream(upstream, node);
+		commonDown = commonDown == null ? network.getLinkedDownstream(node) :
+			network.retainLinkedDownstream(commonDown, node);
+	}
+
+	/**
+	 * Gets the data genes in the network that can expand the group. The network should be set
+	 * with useNetwork.
+	 * @param cache cache of the candidates on the same network, or null
+	 * @return bitset of candidate data genes, which should not be modified
+	 */
+	public long[] getCandidateBits(CandidateCache cache)
+	{
+		if (cache == null) return network.getCandidates(upstream, commonDown, nodes);
+		return cache.get(nodes, () -> network.getCandidates(upstream, commonDown, nodes));
+	}
+
+	public void updateOverlaps(GeneAlt gene)
+	{
+		long[] gch = gene.getBits();
+
+		for (GeneAlt member : members)
+		{
+			BitUtil.orAnd(overlaps.get(member), gch, member.getBits());
 		}
 
-		overlaps.put(gene, gov);
+		overlaps.put(gene, members.isEmpty() ? new long[gch.length] : BitUtil.and(gch, merge));
 
-		if (merge == null) merge = gene.getBooleanChangesCopy();
-		else
+		if (merge == null)
 		{
-			boolean[] c = gene.getBooleanChanges();
-			for (int i = 0; i < merge.length; i++)
-			{
-				if (c[i]) merge[i] = true;
-			}
+			merge = gch.clone();
+			sampleSize = gene.size();
 		}
+		else BitUtil.or(merge, gch);
 	}
 
 	/**
@@ -281,14 +442,7 @@ public class Group implements Serializable
 		// not ok if already a member and not ok if black-listed
 		if (black.contains(gene) || members.contains(gene)) return false;
 
-		boolean[] ch = gene.getBooleanChanges();
-		for (int i = 0; i < ch.length; i++)
-		{
-			if (ch[i] && !merge[i])
-			{
-				return true;
-			}
-		}
+		if (BitUtil.hasAndNot(gene.getBits(), merge)) return true;
 
 		black.add(gene);
 		// does not increase coverage
@@ -302,22 +456,21 @@ public class Group implements Serializable
 	 */
 	public boolean[] getMergedAlterations(int skipIndex)
 	{
-		boolean[] others = new boolean[members.get(0).size()];
-
-		for (int k = 0; k < others.length; k++)
-		{
-			others[k] = false;
+		return BitUtil.unpack(getMergedBits(skipIndex), members.get(0).size());
+	}
 
-			for (int j = 0; j < members.size(); j++)
-			{
-				if (j == skipIndex) continue;
+	/**
+	 * Gets a merged change bitset for the genes in the group. Skips the gene with the given index.
+	 * @param skipIndex index of the gene to skip. Use negative value if no skipping is required
+	 * @return merged changes
+	 */
+	public long[] getMergedBits(int skipIndex)
+	{
+		long[] others = new long[BitUtil.wordCount(members.get(0).size())];
 
-				if (members.get(j).getBooleanChanges()[k])
-				{
-					others[k] = true;
-					break;
-				}
-			}
+		for (int j = 0; j < members.size(); j++)
+		{
+			if (j != skipIndex) BitUtil.or(others, members.get(j).getBits());
 		}
 		return others;
 	}
@@ -352,8 +505,7 @@ public class Group implements Serializable
 	 */
 	public double calcCoverage()
 	{
-		boolean[] merged = getMergedAlterations(-1);
-		return ArrayUtil.countValue(merged, true) / (double) merged.length;
+		return BitUtil.count(getMergedBits(-1)) / (double) members.get(0).size();
 //		return ArrayUtil.countValue(merged, true);
 	}
 
@@ -417,6 +569,12 @@ public class Group implements Serializable
 		Group g = new Group();
 		g.members.addAll(members);
 		g.black.addAll(black);
+
+		// the arrays are replaced, not modified, on updates except the upstream bitset
+		g.network = network;
+		g.nodes = nodes;
+		g.commonDown = commonDown;
+		g.upstream = upstream == null ? null : upstream.clone();
 		return g;
 	}
 
@@ -428,12 +586,12 @@ public class Group implements Serializable
 	{
 		List<Integer> order = new ArrayList<Integer>();
 
-		for (int i = 0; i < members.get(0).getBooleanChanges().length; i++)
+		for (int i = 0; i < members.get(0).size(); i++)
 		{
 			order.add(i);
 		}
 
-		final boolean[][] marks = new boolean[members.get(0).getBooleanChanges().length][];
+		final boolean[][] marks = new boolean[members.get(0).size()][];
 
 		for (int i = 0; i < marks.length; i++)
 		{
@@ -487,7 +645,7 @@ public class Group implements Serializable
 		boolean[] b = new boolean[members.size()];
 		for (int i = 0; i < b.length; i++)
 		{
-			b[i] = members.get(i).getBooleanChanges()[sample];
+			b[i] = members.get(i).isAltered(sample);
 		}
 		return b;
 	}
@@ -648,9 +806,14 @@ public class Group implements Serializable
 		return genes;
 	}
 
+	/**
+	 * Finds the common targets of the members. The common downstream that is kept during the search
+	 * is used if available.
+	 */
 	public void fetchTragets(DirectedGraph traverse, Map<String, GeneAlt> genesMap)
 	{
-		Set<String> tars = traverse.getLinkedCommonDownstream(new HashSet<String>(getGeneNames()));
+		Set<String> tars = network != null ? network.getNames(commonDown) :
+			traverse.getLinkedCommonDownstream(new HashSet<String>(getGeneNames()));
 
 		if (!tars.removeAll(getGeneNames()))
 		{
@@ -0,0 +1,75 @@
+package org.cbio.mutex;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Opens files for reading and writing, with transparent gzip compression for the file names that
+ * end with ".gz".
+ *
+ * @author Ozgun Babur
+ */
+public class IOUtil
+{
+	public static final String GZIP_EXTENSION = ".gz";
+
+	/**
+	 * Buffer size of the compression streams.
+	 */
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	public static boolean isGzipped(String file)
+	{
+		return file.endsWith(GZIP_EXTENSION);
+	}
+
+	/**
+	 * Gets the file name without the ".gz" extension.
+	 */
+	public static String stripGzip(String file)
+	{
+		return isGzipped(file) ? file.substring(0, file.length() - GZIP_EXTENSION.length()) : file;
+	}
+
+	/**
+	 * Opens a buffered input stream, decompressing if the file is gzipped.
+	 */
+	public static InputStream newInputStream(String file) throws IOException
+	{
+		InputStream in = new FileInputStream(file);
+		try
+		{
+			return isGzipped(file) ? new GZIPInputStream(in, BUFFER_SIZE) :
+				new BufferedInputStream(in, BUFFER_SIZE);
+		}
+		catch (IOException e)
+		{
+			in.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens a buffered output stream, compressing if the file name ends with ".gz".
+	 */
+	public static OutputStream newOutputStream(String file) throws IOException
+	{
+		OutputStream out = new FileOutputStream(file);
+		return isGzipped(file) ? new GZIPOutputStream(out, BUFFER_SIZE) :
+			new BufferedOutputStream(out, BUFFER_SIZE);
+	}
+
+	public static BufferedReader newReader(String file) throws IOException
+	{
+		return new BufferedReader(new InputStreamReader(newInputStream(file),
+			StandardCharsets.UTF_8));
+	}
+
+	public static BufferedWriter newWriter(String file) throws IOException
+	{
+		return new BufferedWriter(new OutputStreamWriter(newOutputStream(file),
+			StandardCharsets.UTF_8));
+	}
+}
@@ -120,7 +120,7 @@ public class Integrator
 	}
 
 	private static void printTargets(Map<String, List<List<String>>> groupsMap, int howMany)
-		throws FileNotFoundException
+		throws IOException
 	{
 		DirectedGraph graph = new Network();
 
@@ -2,12 +2,13 @@ package org.cbio.mutex;
 
 import org.panda.utility.ArrayUtil;
 import org.panda.utility.Kronometre;
-import org.panda.utility.statistics.FDR;
 
 import java.io.*;
 import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 /**
@@ -67,6 +68,26 @@ public class Main
 	 */
 	private static Network network;
 
+	/**
+	 * Directory of the network snapshots. Snapshots are not used if not specified.
+	 */
+	private static String networkSnapshotDir;
+
+	/**
+	 * Directory of the row indexes of the data matrices. The analysis directory if not specified.
+	 */
+	private static String matrixIndexDir;
+
+	/**
+	 * Whether to prune the network to the part that can affect the search on the data genes.
+	 */
+	private static boolean pruneNetwork;
+
+	/**
+	 * Memory limit of the cache of expansion candidates on the network, in megabytes.
+	 */
+	private static long candidateCacheSize;
+
 	/**
 	 * Users can limit the search to certain genes using this file.
 	 */
@@ -104,6 +125,68 @@ public class Main
 	 */
 	private static boolean randomizeDataMatrix;
 
+	/**
+	 * Number of threads to use in the search.
+	 */
+	private static int threads;
+
+	/**
+	 * Seed for the random number generators. Makes the results reproducible when provided.
+	 */
+	private static Long randomSeed;
+
+	/**
+	 * Number of entries in the cache of mutual exclusivity p-values. Zero disables the cache.
+	 */
+	private static int pvalCacheSize;
+
+	/**
+	 * Memory limit for the null distributions of initial p-values, in megabytes. Zero means no limit.
+	 */
+	private static int nullDistMemoryLimit;
+
+	/**
+	 * Whether genes with the same alteration counts and network neighborhood share their null
+	 * distributions of initial p-values.
+	 */
+	private static boolean shareNullDists;
+
+	/**
+	 * Number of second-level random runs to execute at the same time.
+	 */
+	private static int parallelRandomRuns;
+
+	/**
+	 * Minutes after which a claimed random run slot of an unresponsive process is given to another.
+	 */
+	private static int randomRunTimeout;
+
+	/**
+	 * Number of lowest final scores of random runs to keep exactly. Zero keeps all.
+	 */
+	private static int nullScoreSketchSize;
+
+	/**
+	 * Second-level random runs stop when the 95% confidence interval of the estimated FDR at the
+	 * cutoff gets narrower than this. Zero makes all the runs.
+	 */
+	private static double fdrTolerance;
+
+	/**
+	 * Whether to gzip the files of random run scores.
+	 */
+	private static boolean compressRandomScores;
+
+	/**
+	 * Minimum number of random runs before the FDR estimate can be considered converged.
+	 */
+	private static final int MIN_ADAPTIVE_RUNS = 10;
+
+	/**
+	 * Fingerprint of the parameters that affect the final scores of random runs.
+	 */
+	private static long randFingerprint;
+
 	public static void main(String[] args) throws IOException, ClassNotFoundException
 	{
 		Kronometre kron = new Kronometre();
@@ -121,24 +204,30 @@ public class Main
 
 		if (!loadParameters()) System.exit(1);
 
+		FastFisher.setCache(pvalCacheSize > 0 ? new PvalCache(pvalCacheSize) : null);
+		NullDist.setMemoryLimit(nullDistMemoryLimit * 1000000L);
+		MatrixIndex.setDirectory(matrixIndexDir == null ? dir : matrixIndexDir);
+
 		network = null;
 		if (useGraph)
 		{
-			if (networkFilename == null || networkFilename.isEmpty())
-			{
-				network = new Network();
-			}
-			else
-			{
-				for (String name : networkFilename)
-				{
-					if (network == null) network = new Network(name);
-					else network.addResource(name);
-				}
-			}
+			network = Network.load(networkFilename, networkSnapshotDir);
 		}
 
-		if (args.length > 1 && args[1].equals("random"))
+		if (args.length > 1 && args[1].equals("convert-matrix"))
+		{
+			String output = IOUtil.stripGzip(dataFileName);
+			output = output.endsWith(".txt") ?
+				output.substring(0, output.length() - 4) + ".bin" : output + ".bin";
+			MatrixFile.convert(dataFileName, output);
+			System.out.println("Data matrix is converted into " + output);
+		}
+		else if (args.length > 1 && args[1].equals("compact-randscores"))
+		{
+			File file = RandomRunQueue.compact(dir + "randscores/");
+			if (file != null) System.out.println("Random scores are compacted into " + file);
+		}
+		else if (args.length > 1 && args[1].equals("random"))
 		{
 			int howMany = 1;
 
@@ -173,11 +262,25 @@ public class Main
 		dataFileName = null;
 		networkFilename = null;
 		network = null;
+		networkSnapshotDir = null;
+		matrixIndexDir = null;
+		pruneNetwork = false;
+		candidateCacheSize = 64;
 		symbolsFile = null;
 		randomizeDataMatrix = false;
 		minAltCntThr = null;
 		geneLimit = null;
 		geneRankingFile = null;
+		threads = 1;
+		randomSeed = null;
+		pvalCacheSize = 1 << 18;
+		nullDistMemoryLimit = 0;
+		shareNullDists = false;
+		parallelRandomRuns = 1;
+		randomRunTimeout = 10;
+		nullScoreSketchSize = 0;
+		fdrTolerance = 0;
+		compressRandomScores = false;
 	}
 
 	/**
@@ -190,19 +293,34 @@ public class Main
 		// load the alteration data
 		Map<String, GeneAlt> genesMap = loadAlterations();
 
-		MutexGreedySearcher searcher = new MutexGreedySearcher(genesMap, network);
+		MutexGreedySearcher searcher = createSearcher(genesMap);
 		Set<String> symbols = genesMap.keySet();
 		if (network != null) symbols.retainAll(network.getSymbols());
 		Set<String> noShuffle = loadHighlySignificantGenes();
+		randFingerprint = getRandomRunFingerprint(symbols);
 		generateRandomPvals(searcher, symbols, noShuffle, null, howMany);
 	}
 
 	/**
-	 *
+	 * Runs the search, and reports the use of the p-value cache and the null distributions.
 	 * @throws IOException
 	 * @throws ClassNotFoundException
 	 */
 	public static void search() throws IOException, ClassNotFoundException
+	{
+		searchGroups();
+
+		PvalCache cache = FastFisher.getCache();
+		if (cache != null) System.out.println(cache.getReport());
+		System.out.println(NullDist.getReport());
+	}
+
+	/**
+	 *
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	private static void searchGroups() throws IOException, ClassNotFoundException
 	{
 		System.out.println("----------------------------------------\n");
 		System.out.println("Directory = " + dir);
@@ -220,62 +338,101 @@ public class Main
 		if (randomizeDataMatrix)
 		{
 			System.out.print("Randomizing data matrix ... ");
-			for (GeneAlt gene : genesMap.values())
-			{
-				gene.shufflePermanent();
-			}
+			Random r = getDataRandom();
+			genesMap.replaceAll((id, gene) -> gene.getPermanentlyShuffled(r));
 			System.out.println("done");
 		}
 
 		System.out.println("Number of genes = " + genesMap.size());
 		System.out.println("Number of samples = " + genesMap.values().iterator().next().size());
 
-		MutexGreedySearcher searcher = new MutexGreedySearcher(genesMap, network);
+		MutexGreedySearcher searcher = createSearcher(genesMap);
 		searcher.setTypeToInds(readTissueToSampleMapping());
 
 		Set<String> symbols = genesMap.keySet();
 		if (network != null) symbols.retainAll(network.getSymbols());
 
 		Map<String, Group> groupsOfSeeds = searcher.getGroupsOfSeeds(symbols, maxGroupSize, randIter1);
+		System.out.println("Null distribution samples = " + searcher.getNullSampleCount());
+		if (network != null)
+		{
+			System.out.println(searcher.getNetworkReport());
+			String cacheReport = searcher.getCandidateCacheReport();
+			if (cacheReport != null) System.out.println(cacheReport);
+		}
 
 		writeRankedGroups(groupsOfSeeds, null, "ranked-groups.txt");
 
 		// we are done if we won't cutoff from an fdr or a score
 		if (randIter2 <= 0 && scoreThr < 0) return;
 
+		Map<String, Double> resultScores = new HashMap<String, Double>();
+		for (String id : groupsOfSeeds.keySet())
+		{
+			resultScores.put(id, groupsOfSeeds.get(id).calcFinalScore());
+		}
+
 		// Load and/or generate final scores null distribution
-		List<Double> nullDist = new ArrayList<Double>();
+		NullScoreSketch nullDist = new NullScoreSketch(nullScoreSketchSize);
+		int randRuns = randIter2;
 
 		if (!noRandomRun && randIter2 > 0)
 		{
-			int cnt = readRandomPvals(nullDist);
-			if (cnt < randIter2)
+			randFingerprint = getRandomRunFingerprint(symbols);
+			int cnt;
+			if (fdrTolerance > 0)
 			{
-				generateRandomPvals(searcher, symbols, loadHighlySignificantGenes(), nullDist,
-					randIter2 - cnt);
+				cnt = generateUntilConverged(searcher, symbols, resultScores, nullDist);
+			}
+			else
+			{
+				cnt = readRandomPvals(nullDist);
+				if (cnt < randIter2)
+				{
+					cnt = generateRandomPvals(searcher, symbols, loadHighlySignificantGenes(),
+						nullDist, randIter2 - cnt);
+				}
+			}
+			if (cnt == 0)
+			{
+				System.err.println("No random runs of the current parameters could be loaded.");
+				return;
+			}
+			if (cnt != randIter2)
+			{
+				System.out.println("Number of random runs loaded = " + cnt);
+				randRuns = cnt;
 			}
-			writeRankedGroups(groupsOfSeeds, nullDist, "ranked-groups.txt");
 		}
 
 		// Apply FDR cutoff
-		Map<String, Double> resultScores = new HashMap<String, Double>();
-		for (String id : groupsOfSeeds.keySet())
-		{
-			resultScores.put(id, groupsOfSeeds.get(id).calcFinalScore());
-		}
+
+		FDRSweep sweep = randRuns > 0 ? new FDRSweep(resultScores, nullDist, randRuns) : null;
+		if (!noRandomRun && randIter2 > 0) writeRankedGroups(groupsOfSeeds, sweep, "ranked-groups.txt");
 
 //		if (dir.contains("simulation1")) Simulation.plotEstimatedVsActualFDR(groupsOfSeeds, resultScores, nullDist, randIter2, 830, 150);
 //		else if (dir.contains("simulation2")) Simulation.plotEstimatedVsActualFDR(groupsOfSeeds, resultScores, nullDist, randIter2, 156, 60);
 
 		if (fdrThr < 0 && scoreThr < 0)
 		{
-			fdrThr = decideBestFDR(resultScores, nullDist, randIter2);
+			fdrThr = decideBestFDR(sweep);
 		}
 
 		System.out.println("Selected FDR = " + fdrThr);
 		if (fdrThr < 0 && scoreThr < 0) return;
 
-		List<String> selectedSeeds = fdrThr >= 0 ? FDR.select(resultScores, fdrThr, nullDist, randIter2) :
+		if (sweep != null && !nullDist.isExact())
+		{
+			System.out.println(nullDist.getReport());
+			int size = fdrThr >= 0 ? sweep.getSelectionSize(fdrThr) : 0;
+			if (size > 0)
+			{
+				System.out.println("Maximum overestimation of FDR at the cutoff = " +
+					sweep.getFDRError(size - 1));
+			}
+		}
+
+		List<String> selectedSeeds = fdrThr >= 0 && sweep != null ? sweep.select(fdrThr) :
 			selectWithScore(resultScores, scoreThr);
 
 		List<Group> groups = new ArrayList<>(selectedSeeds.size());
@@ -319,16 +476,14 @@ public class Main
 		Map<String, GeneAlt> genesMap = loadAlterations();
 
 		System.out.print("Randomizing data matrix ... ");
-		for (GeneAlt gene : genesMap.values())
-		{
-			gene.shufflePermanent();
-		}
+		Random r = getDataRandom();
+		genesMap.replaceAll((id, gene) -> gene.getPermanentlyShuffled(r));
 		System.out.println("done");
 
 		System.out.println("Number of genes = " + genesMap.size());
 		System.out.println("Number of samples = " + genesMap.values().iterator().next().size());
 
-		MutexGreedySearcher searcher = new MutexGreedySearcher(genesMap, network);
+		MutexGreedySearcher searcher = createSearcher(genesMap);
 
 		Set<String> symbols = genesMap.keySet();
 
@@ -339,6 +494,20 @@ public class Main
 		writeRankedGroups(groupsOfSeeds, null, "ranked-groups-random.txt");
 	}
 
+	/**
+	 * Creates the searcher with the parameters of the run.
+	 */
+	private static MutexGreedySearcher createSearcher(Map<String, GeneAlt> genesMap)
+	{
+		MutexGreedySearcher searcher = new MutexGreedySearcher(genesMap, network);
+		searcher.setThreads(threads);
+		searcher.setShareNullDists(shareNullDists);
+		searcher.setPruneNetwork(pruneNetwork);
+		searcher.setCandidateCacheSize(candidateCacheSize * 1000000L);
+		if (randomSeed != null) searcher.setRandomSeed(randomSeed);
+		return searcher;
+	}
+
 	private static List<String> getGenes(List<Group> groups,
 		final Map<String, GeneAlt> genesMap)
 	{
@@ -389,28 +558,41 @@ public class Main
 			"fdr-cutoff: Users can select a specific FDR cutoff. When not provided, or when set to a negative value, the FDR cutoff that maximizes the expected value of true positives - false positives is used.\n\n" +
 			"search-on-signaling-network: Whether to reduce the search space using the signaling network. true or false. Default is true.\n\n" +
 			"genes-file: This parameter can be used to limit the search to a subset of genes. The file should contain a gene symbol per line.\n\n" +
+			"number-of-threads: Number of threads to use in the search. Default is 1.\n\n" +
+			"random-seed: Seed for the random number generators, to make the results reproducible. Also seeds the second-level random runs, using the index of each run. Optional.\n\n" +
+			"p-value-cache-size: Number of mutual exclusivity p-values to cache. 0 disables the cache. Sizes above 1073741824 are reduced to it. Default is 262144.\n\n" +
+			"null-distribution-memory-limit: Memory limit in megabytes for the null distributions of initial p-values. Distributions that exceed it are compressed with a small loss of precision. Default is 0, no limit.\n\n" +
+			"share-null-distributions: Whether genes with the same alteration counts and network neighborhood use the same null distribution of initial p-values, which approximates the null distribution of each gene with a faster sampling. Default is false.\n\n" +
+			"parallel-random-runs: Number of second-level random runs to execute at the same time. The runs share the number-of-threads threads. Default is 1.\n\n" +
+			"random-run-timeout: Minutes after which a random run claimed by a process that stopped responding is given to another process. Default is 10.\n\n" +
+			"null-score-sketch-size: Number of lowest final scores of random runs to keep exactly in memory. Higher scores are counted in a histogram. Default is 0, which keeps all scores.\n\n" +
+			"fdr-tolerance: Stops second-level random runs early when the 95% confidence interval of the estimated FDR at the cutoff gets narrower than this value. second-level-random-iteration is the maximum. Default is 0, which makes all the runs.\n\n" +
+			"compress-random-scores: Whether to gzip the files of random run scores. Default is false.\n\n" +
+			"matrix-index-directory: Directory to save the row indexes of the data matrices, which are used when only some genes are read. Default is the analysis directory.\n\n" +
+			"prune-network: Whether to remove the parts of the network that cannot affect the search on the genes in the data. Default is false.\n\n" +
+			"candidate-cache-size: Memory limit in megabytes of the cache of expansion candidates on the network. 0 disables the cache. Default is 64.\n\n" +
+			"network-snapshot-directory: Directory to save the snapshot of the loaded network, which makes the later runs start faster. Relative paths are in the data directory, and ~ is the home directory, hence ~/.mutex/network-snapshots can be shared by all analyses of the user. Default is no snapshot.\n\n" +
 			"network-file: To customize the signaling network, users can use this parameter. The tab-delimited network file should contain 3 columns (Gene Symbol 1, interaction-type, Gene Symbol 2).");
 	}
 
 	/**
-	 * @deprecated
+	 * Writes the alterations in the binary matrix format.
 	 */
 	private static void cacheData(Map<String, GeneAlt> geneMap, String filename) throws IOException
 	{
-		ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(dir + filename));
-		out.writeObject(geneMap);
-		out.close();
+		MatrixFile.write(geneMap, MatrixParser.readSampleNames(dataFileName), dir + filename);
 	}
 
-	public static Map<String, GeneAlt> readCache(String filename) throws IOException, ClassNotFoundException
+	/**
+	 * Reads the alterations that are written with cacheData. Genes are decoded when they are first
+	 * accessed.
+	 */
+	public static Map<String, GeneAlt> readCache(String filename) throws IOException
 	{
 		File file = new File((dir == null ? "" : dir + File.separator) + filename);
-		if (file.exists())
+		if (file.exists() && MatrixFile.isMatrixFile(file.getPath()))
 		{
-			ObjectInputStream in = new ObjectInputStream(new FileInputStream(file));
-			Map<String, GeneAlt> map = (Map<String, GeneAlt>) in.readObject();
-			in.close();
-			return map;
+			return new MatrixParser(file.getPath()).parse();
 		}
 		return null;
 	}
@@ -420,86 +602,14 @@ public class Main
 		if (dataFileName == null) return null;
 		if (!new File(dataFileName).exists()) return null;
 
-		Map<String, GeneAlt> map = new HashMap<String, GeneAlt>();
-		BufferedReader reader = new BufferedReader(new FileReader(dataFileName));
-
-		// skip header
-		reader.readLine();
-
-		for (String line = reader.readLine(); line != null; line = reader.readLine())
-		{
-			String[] token = line.split("\t");
-			GeneAlt gene = new GeneAlt(token);
-
-			if (minAltCntThr != null)
-			{
-				int altCnt = gene.countAltered();
-				if (altCnt < minAltCntThr) continue;
-			}
-
-			map.put(gene.id, gene);
-		}
-
-		reader.close();
-		crop(map);
-
-		if (geneLimit != null && map.size() > geneLimit)
-		{
-			List<String> ranking = readGeneRanking();
-			if (ranking != null)
-			{
-				Collections.reverse(ranking);
-
-				for (String gene : new HashSet<>(map.keySet()))
-				{
-					if (!ranking.contains(gene)) map.remove(gene);
-				}
-
-				Iterator<String> iter = ranking.iterator();
-				while (map.size() > geneLimit && iter.hasNext())
-				{
-					map.remove(iter.next());
-				}
-			}
-			else
-			{
-				List<String> names = new ArrayList<>(map.keySet());
-				final Map<String, Integer> cnt = new HashMap<>();
-				for (String name : map.keySet())
-				{
-					cnt.put(name, map.get(name).countAltered());
-				}
-				Collections.sort(names, (o1, o2) -> cnt.get(o2).compareTo(cnt.get(o1)));
-				int thr = cnt.get(names.get(geneLimit + 1));
-				System.out.println("Alteration cnt threshold > " + thr);
-				for (String name : cnt.keySet())
-				{
-					if (cnt.get(name) <= thr) map.remove(name);
-				}
-			}
-		}
-
-		return map;
-	}
-
-	/**
-	 * Crops data to the user-provided symbols.
-	 */
-	private static void crop(Map<String, GeneAlt> map) throws FileNotFoundException
-	{
-		if (symbolsFile == null) return;
-
-		Set<String> symbols = readSymbolsFile();
-
-		Set<String> remove = new HashSet<String>(map.keySet());
-		remove.removeAll(symbols);
-		for (String symbol : remove)
-		{
-			map.remove(symbol);
-		}
+		MatrixParser parser = new MatrixParser(dataFileName);
+		if (symbolsFile != null) parser.setSymbols(readSymbolsFile());
+		parser.setMinAltCnt(minAltCntThr);
+		if (geneLimit != null) parser.setGeneLimit(geneLimit, readGeneRanking());
+		return parser.parse();
 	}
 
-	private static List<String> readGeneRanking() throws FileNotFoundException
+	private static List<String> readGeneRanking() throws IOException
 	{
 		if (geneRankingFile == null) return null;
 
@@ -509,7 +619,7 @@ public class Main
 		}
 
 		List<String> list = new ArrayList<String>();
-		Scanner sc = new Scanner(new File(geneRankingFile));
+		Scanner sc = new Scanner(IOUtil.newReader(geneRankingFile));
 		sc.nextLine();
 		while (sc.hasNextLine())
 		{
@@ -519,11 +629,11 @@ public class Main
 		return list;
 	}
 
-	private static Set<String> readSymbolsFile() throws FileNotFoundException
+	private static Set<String> readSymbolsFile() throws IOException
 	{
 		Set<String> symbols = new HashSet<String>();
 
-		Scanner sc = new Scanner(new File(symbolsFile));
+		Scanner sc = new Scanner(IOUtil.newReader(symbolsFile));
 		while (sc.hasNextLine())
 		{
 			String line = sc.nextLine();
@@ -540,17 +650,21 @@ public class Main
 	{
 		if (sampleToTissueMappingFile != null)
 		{
-			String[] header = Files.lines(Paths.get(dataFileName)).findFirst().get().split("\t");
+			List<String> samples = MatrixParser.readSampleNames(dataFileName);
 
-			Map<String, String> sampleToType = Files.lines(Paths.get(sampleToTissueMappingFile)).skip(1)
-				.map(l -> l.split("\t")).collect(Collectors.toMap(t -> t[0], t -> t[1], (s, s2) -> s));
+			Map<String, String> sampleToType;
+			try (BufferedReader reader = IOUtil.newReader(sampleToTissueMappingFile))
+			{
+				sampleToType = reader.lines().skip(1).map(l -> l.split("\t"))
+					.collect(Collectors.toMap(t -> t[0], t -> t[1], (s, s2) -> s));
+			}
 
 			Map<String, List<Integer>> map = new HashMap<>();
-			for (int i = 1; i < header.length; i++)
+			for (int i = 0; i < samples.size(); i++)
 			{
-				String type = sampleToType.get(header[i]);
+				String type = sampleToType.get(samples.get(i));
 				if (!map.containsKey(type)) map.put(type, new ArrayList<>());
-				map.get(type).add(i - 1);
+				map.get(type).add(i);
 			}
 
 			return map.keySet().stream()
@@ -560,36 +674,41 @@ public class Main
 	}
 
 	/**
-	 * Writes ordered mutex groups in a file.
+	 * Writes ordered mutex groups in a file. Q-values are written if the FDR sweep of the groups is
+	 * given.
 	 */
-	private static void writeRankedGroups(Map<String, Group> groupMap, List<Double> nullDist, String filename) throws IOException
+	private static void writeRankedGroups(Map<String, Group> groupMap, FDRSweep sweep, String filename) throws IOException
 	{
-		final Map<String, Double> scoreMap = new HashMap<String, Double>();
-		for (String id : groupMap.keySet())
+		List<String> sorted;
+		if (sweep != null) sorted = sweep.getSortedKeys();
+		else
 		{
-			scoreMap.put(id, groupMap.get(id).calcFinalScore());
-		}
+			final Map<String, Double> scoreMap = new HashMap<String, Double>();
+			for (String id : groupMap.keySet())
+			{
+				scoreMap.put(id, groupMap.get(id).calcFinalScore());
+			}
 
-		List<String> sorted = new ArrayList<String>(groupMap.keySet());
-		Collections.sort(sorted, (o1, o2) -> scoreMap.get(o1).compareTo(scoreMap.get(o2)));
+			sorted = new ArrayList<String>(groupMap.keySet());
+			Collections.sort(sorted, (o1, o2) -> scoreMap.get(o1).compareTo(scoreMap.get(o2)));
+		}
 
 		BufferedWriter writer = new BufferedWriter(new FileWriter(dir + filename));
 
-		writer.write(nullDist == null? "Score\tMembers" : "Score\tq-val\tMembers");
+		writer.write(sweep == null? "Score\tMembers" : "Score\tq-val\tMembers");
 		int i = 0;
 		for (String seed : sorted)
 		{
 			Group group = groupMap.get(seed);
-			i++;
 
 			double score = group.calcFinalScore();
 			writer.write("\n" + score);
 
-			if (nullDist != null)
+			if (sweep != null)
 			{
-				double qval = (countFalsePositive(nullDist, score) / (double) randIter2) / i;
-				writer.write("\t" + qval);
+				writer.write("\t" + sweep.getFDR(i));
 			}
+			i++;
 
 			for (String name : group.getGeneNames())
 			{
@@ -600,102 +719,341 @@ public class Main
 		writer.close();
 	}
 
-	private static int countFalsePositive(List<Double> nullDist, double thr)
+	/**
+	 * Loads the final scores of random runs, up to the number of second-level iterations. Scores
+	 * that are generated with different parameters are skipped.
+	 * @return number of random runs loaded
+	 */
+	private static int readRandomPvals(NullScoreSketch vals) throws IOException
 	{
-		int cnt = 0;
-		for (Double v : nullDist)
-		{
-			if (v <= thr) cnt++;
-		}
-		return cnt;
+		return readRandomPvals(vals, new HashSet<>(), 0);
 	}
 
-	private static int readRandomPvals(List<Double> vals) throws FileNotFoundException
+	/**
+	 * Loads the final scores of random runs from the files that are not loaded yet. If a loaded
+	 * file is removed, for instance by compaction, all files are loaded again.
+	 * @param loaded names of the loaded files, updated with the new ones
+	 * @param cnt number of random runs that are already loaded
+	 * @return number of random runs loaded in total
+	 */
+	private static int readRandomPvals(NullScoreSketch vals, Set<String> loaded, int cnt)
+		throws IOException
 	{
 		String directory = dir + "randscores/";
 		File d = new File(directory);
-		if (!d.exists()) return 0;
+		if (!d.exists()) return cnt;
 
-		int cnt = 0;
-		for (File file : new File(directory).listFiles())
+		File[] files = d.listFiles();
+		Arrays.sort(files);
+
+		Set<String> names = new HashSet<>();
+		for (File file : files)
 		{
-			if (file.getName().endsWith(".txt"))
+			names.add(file.getName());
+		}
+		if (!names.containsAll(loaded))
+		{
+			vals.clear();
+			loaded.clear();
+			cnt = 0;
+		}
+
+		for (File file : files)
+		{
+			if (cnt >= randIter2) break;
+			if (!RandScoreFile.isScoreFile(file) || !loaded.add(file.getName())) continue;
+
+			RandScoreFile rsf = RandScoreFile.read(file);
+			if (rsf.fingerprint != 0 && rsf.fingerprint != randFingerprint)
 			{
-				Scanner sc = new Scanner(file);
-				while (sc.hasNextLine())
-				{
-					String line = sc.nextLine();
-					if (!line.isEmpty()) vals.add(new Double(line));
-				}
+				System.err.println("Skipping random scores of different parameters: " + file);
+				continue;
 			}
-			cnt++;
 
-			if (cnt == randIter2) break;
+			vals.addAll(rsf.scores);
+			cnt += rsf.runs;
+		}
+		return cnt;
+	}
+
+	/**
+	 * Gets a fingerprint of the parameters that affect the final scores of random runs.
+	 * @param genes genes in the search
+	 */
+	private static long getRandomRunFingerprint(Set<String> genes)
+	{
+		long h = 1125899906842597L;
+		for (String s : new TreeSet<>(genes))
+		{
+			h = 31 * h + s.hashCode();
+		}
+		h = 31 * h + Objects.hash(dataFileName, maxGroupSize, randIter1, useGraph, networkFilename,
+			sampleToTissueMappingFile, minAltCntThr, geneLimit, shareNullDists);
+
+		// pruning changes which genes share null distributions
+		if (pruneNetwork) h = 31 * h + 1;
+		return h == 0 ? 1 : h;
+	}
+
+	/**
+	 * Gets the random seed of the second-level random run with the given index. Runs have
+	 * different seeds that are derived from the random-seed parameter, if given.
+	 */
+	private static long getRunSeed(int run)
+	{
+		return randomSeed == null ? new Random().nextLong() :
+			randomSeed + 0x9E3779B97F4A7C15L * (run + 1);
+	}
+
+	/**
+	 * Gets a random number generator for randomizing the data matrix, seeded with the random-seed
+	 * parameter if given.
+	 */
+	private static Random getDataRandom()
+	{
+		return randomSeed == null ? new Random() : new Random(randomSeed);
+	}
+
+	/**
+	 * Counts the random runs in the score files of the given directory.
+	 */
+	private static int countRandomRuns(File directory) throws IOException
+	{
+		int cnt = 0;
+		File[] files = directory.listFiles();
+		if (files == null) return 0;
+
+		for (File file : files)
+		{
+			if (RandScoreFile.isScoreFile(file)) cnt += RandScoreFile.countRuns(file);
 		}
 		return cnt;
 	}
 
-	private static void generateRandomPvals(MutexGreedySearcher searcher, Set<String> genes,
-		Set<String> noShuffle, List<Double> vals, int howMany) throws IOException
+	/**
+	 * Generates random runs for the null distribution of final group scores. If the number of
+	 * random runs is set, runs are coordinated with the other processes that use the same
+	 * randscores directory, so that they together exactly fill the quota.
+	 * @param vals if not null, waits until the quota is filled, and loads all random scores here
+	 * @param howMany maximum number of runs that this process should make
+	 * @return number of random runs in vals, or the number of runs made if vals is null
+	 */
+	private static int generateRandomPvals(MutexGreedySearcher searcher, Set<String> genes,
+		Set<String> noShuffle, NullScoreSketch vals, int howMany) throws IOException
 	{
 		String directory = dir + "randscores/";
 		File d = new File(directory);
 		if (!d.exists()) d.mkdirs();
 
-		for (int i = 0; i < howMany; i++)
+		RandomRunQueue.SlotRunner runner = run ->
+			searcher.generateRandPvals(genes, noShuffle, maxGroupSize, randIter1, getRunSeed(run));
+
+		if (randIter2 <= 0)
 		{
-			System.out.println("iteration = " + (i + 1));
-			List<Double> list = searcher.generateRandPvals(genes, noShuffle, maxGroupSize, randIter1);
-			if (vals != null) vals.addAll(list);
+			// no quota to share, just make the runs, indexed after the runs in the directory
+			int offset = countRandomRuns(d);
+			AtomicInteger iter = new AtomicInteger();
+			runInParallel(howMany, () ->
+			{
+				while (iter.get() < howMany)
+				{
+					int i = iter.incrementAndGet();
+					if (i > howMany) break;
+					System.out.println("iteration = " + i);
+					List<Double> list = runner.run(offset + i - 1);
+					if (vals != null) vals.addAll(list);
+					writeRandomRun(directory, list);
+				}
+				return null;
+			});
+			return howMany;
+		}
 
-			Collections.sort(list);
-			BufferedWriter writer = new BufferedWriter(new FileWriter(directory + "/randfile-" +
-				System.currentTimeMillis() + "-" + new Random().nextInt(1000) + ".txt"));
+		RandomRunQueue queue = new RandomRunQueue(directory, randIter2, randomRunTimeout * 60000L,
+			randFingerprint);
+		queue.setCompress(compressRandomScores);
+		try
+		{
+			AtomicInteger remaining = new AtomicInteger(howMany);
+			AtomicInteger made = new AtomicInteger();
+			runInParallel(howMany, () ->
+			{
+				while (remaining.getAndDecrement() > 0)
+				{
+					int slot = queue.claim();
+					if (slot < 0) break;
+					System.out.println("iteration at slot = " + slot);
+					queue.run(slot, runner);
+					made.incrementAndGet();
+				}
+				return null;
+			});
 
-			for (Double v : list)
+			if (vals != null)
 			{
-				writer.write(v + "\n");
+				// make sure runs of the other processes are also done
+				queue.waitUntilFilled(runner);
+				vals.clear();
+				return readRandomPvals(vals);
 			}
-
-			writer.close();
+			return made.get();
+		}
+		finally
+		{
+			queue.close();
 		}
 	}
 
-	public static double decideBestFDR(final  Map<String,  Double>  results,
-		List<Double>  randomized, int randMultiplier) throws IOException
+	/**
+	 * Makes second-level random runs until the 95% confidence interval of the estimated FDR at the
+	 * cutoff is narrower than the tolerance, or the number of runs reaches the maximum. The cutoff
+	 * is the FDR threshold if given, or the best one otherwise. Runs of the other processes that
+	 * share the randscores directory are also counted. Each check is written to
+	 * fdr-convergence.txt.
+	 * @return number of random runs in nullDist
+	 */
+	private static int generateUntilConverged(MutexGreedySearcher searcher, Set<String> genes,
+		Map<String, Double> resultScores, NullScoreSketch nullDist) throws IOException
 	{
-		double bestFDR = -1;
-		double maxScore = -Double.MAX_VALUE;
-
-		BufferedWriter writer = new BufferedWriter(new FileWriter(dir + "fdr-guide.txt"));
+		Set<String> noShuffle = loadHighlySignificantGenes();
+		Set<String> loaded = new HashSet<>();
 
-		writer.write("cutoff-val\tResult size\tFDR\tExpected true positives (tp)\tExpected false positives (fp)\ttp-fp");
-		for (int i = 1; i <= 50; i++)
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(dir + "fdr-convergence.txt")))
 		{
-			double fdr = i / 100D;
-			List<String> select = FDR.select(results, fdr, randomized, randMultiplier);
-			double tp = select.size() * (1 - fdr);
-			double fp = select.size() * fdr;
-			double score = tp - fp;
+			writer.write("Random runs\tFDR cutoff\tResult size\tEstimated FDR\tCI lower\tCI upper\tCI width");
 
-			double cutoffVal = -1;
-			for (String s : select)
+			int cnt = 0;
+			while (true)
 			{
-				if (results.get(s) > cutoffVal) cutoffVal = results.get(s);
+				cnt = readRandomPvals(nullDist, loaded, cnt);
+				if (cnt > 0)
+				{
+					FDRSweep sweep = new FDRSweep(resultScores, nullDist, cnt);
+					double cutoff = fdrThr >= 0 ? fdrThr : sweep.getBestFDR();
+					int size = sweep.getSelectionSize(cutoff);
+					int rank = Math.max(size, 1) - 1;
+					double fdr = sweep.getFDR(rank);
+					double half = sweep.getConfidenceHalfWidth(rank);
+
+					writer.write("\n" + cnt + "\t" + cutoff + "\t" + size + "\t" + fdr + "\t" +
+						Math.max(0, fdr - half) + "\t" + (fdr + half) + "\t" + (2 * half));
+					writer.flush();
+
+					if (cnt >= Math.min(MIN_ADAPTIVE_RUNS, randIter2) && 2 * half < fdrTolerance)
+					{
+						System.out.println("FDR estimate converged after " + cnt + " random runs");
+						return cnt;
+					}
+				}
+				if (cnt >= randIter2) return cnt;
+
+				// make as many runs as can run at the same time, then check again
+				int made = generateRandomPvals(searcher, genes, noShuffle, null,
+					Math.min(parallelRandomRuns, randIter2 - cnt));
+
+				if (made == 0)
+				{
+					// remaining slots are claimed by other processes, wait for their results
+					try
+					{
+						Thread.sleep(1000);
+					}
+					catch (InterruptedException e)
+					{
+						throw new InterruptedIOException("Interrupted while waiting for random runs.");
+					}
+				}
 			}
+		}
+	}
 
-			if (score >= maxScore)
+	/**
+	 * Runs the given worker in as many threads as the parallel random runs, but not more than the
+	 * given number of runs.
+	 */
+	private static void runInParallel(int runs, RandomRunQueue.IOCallable<?> worker) throws IOException
+	{
+		int n = Math.max(1, Math.min(parallelRandomRuns, runs));
+		if (n == 1)
+		{
+			worker.call();
+			return;
+		}
+
+		// each run works on its own shuffled views of the genes, so the runs do not interfere
+		ExecutorService pool = Executors.newFixedThreadPool(n);
+		try
+		{
+			List<Future<?>> futures = new ArrayList<>(n);
+			for (int i = 0; i < n; i++)
 			{
-				maxScore = score;
-				bestFDR = fdr;
+				futures.add(pool.submit(worker::call));
 			}
+			for (Future<?> future : futures)
+			{
+				future.get();
+			}
+		}
+		catch (InterruptedException | ExecutionException e)
+		{
+			throw new IOException("A random run failed.", e);
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Writes the final scores of a random run to a new file in the given directory.
+	 */
+	private static void writeRandomRun(String directory, List<Double> list) throws IOException
+	{
+		double[] vals = new double[list.size()];
+		for (int i = 0; i < vals.length; i++)
+		{
+			vals[i] = list.get(i);
+		}
+		Arrays.sort(vals);
+
+		// write to a temporary file first, so that readers never see a partial file
+		long id = new Random().nextLong();
+		String name = "randfile-" + System.currentTimeMillis() + "-" + Long.toHexString(id);
+		String gz = compressRandomScores ? IOUtil.GZIP_EXTENSION : "";
+		File tmp = new File(directory, name + ".tmp" + gz);
+		File file = new File(directory, name + RandScoreFile.BINARY_EXTENSION + gz);
+
+		new RandScoreFile(1, id, randFingerprint, vals).write(tmp);
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Writes the expected true and false positives at FDR cutoffs from 0.01 to 0.5, and decides the
+	 * cutoff that maximizes their difference.
+	 * @return the best FDR cutoff, or -1 if it is the largest one tried
+	 */
+	public static double decideBestFDR(FDRSweep sweep) throws IOException
+	{
+		BufferedWriter writer = new BufferedWriter(new FileWriter(dir + "fdr-guide.txt"));
+
+		writer.write("cutoff-val\tResult size\tFDR\tExpected true positives (tp)\tExpected false positives (fp)\ttp-fp");
+		int[] sizes = sweep.getSelectionSizes(FDRSweep.FDR_STEPS, FDRSweep.FDR_STEP_COUNT);
+		for (int i = 1; i <= FDRSweep.FDR_STEP_COUNT; i++)
+		{
+			double fdr = i / (double) FDRSweep.FDR_STEPS;
+			int size = sizes[i - 1];
+			double tp = size * (1 - fdr);
+			double fp = size * fdr;
+
+			double cutoffVal = size == 0 ? -1 : Math.max(-1, sweep.getScore(size - 1));
 
-			writer.write("\n" + cutoffVal + "\t" + select.size() + "\t" + fdr + "\t" + tp + "\t" +
+			writer.write("\n" + cutoffVal + "\t" + size + "\t" + fdr + "\t" + tp + "\t" +
 				fp + "\t" + (tp - fp));
 		}
 		writer.close();
 
-		if (bestFDR == 0.5) return -1;
+		double bestFDR = sweep.getBestFDR();
+		if (bestFDR == FDRSweep.FDR_STEP_COUNT / (double) FDRSweep.FDR_STEPS) return -1;
 
 		return bestFDR;
 	}
@@ -798,6 +1156,67 @@ public class Main
 			{
 				sampleToTissueMappingFile = dir + token[1];
 			}
+			else if (token[0].equals("number-of-threads"))
+			{
+				threads = Integer.parseInt(token[1]);
+			}
+			else if (token[0].equals("random-seed"))
+			{
+				randomSeed = Long.parseLong(token[1]);
+			}
+			else if (token[0].equals("p-value-cache-size"))
+			{
+				pvalCacheSize = Integer.parseInt(token[1]);
+
+				if (pvalCacheSize < 0) throw new IllegalArgumentException(
+					"p-value-cache-size cannot be negative: " + pvalCacheSize);
+			}
+			else if (token[0].equals("null-distribution-memory-limit"))
+			{
+				nullDistMemoryLimit = Integer.parseInt(token[1]);
+			}
+			else if (token[0].equals("share-null-distributions"))
+			{
+				shareNullDists = Boolean.parseBoolean(token[1]);
+			}
+			else if (token[0].equals("parallel-random-runs"))
+			{
+				parallelRandomRuns = Integer.parseInt(token[1]);
+			}
+			else if (token[0].equals("random-run-timeout"))
+			{
+				randomRunTimeout = Integer.parseInt(token[1]);
+			}
+			else if (token[0].equals("null-score-sketch-size"))
+			{
+				nullScoreSketchSize = Integer.parseInt(token[1]);
+			}
+			else if (token[0].equals("fdr-tolerance"))
+			{
+				fdrTolerance = Double.parseDouble(token[1]);
+			}
+			else if (token[0].equals("network-snapshot-directory"))
+			{
+				if (token[1].startsWith("~")) networkSnapshotDir = System.getProperty("user.home") +
+					token[1].substring(1);
+				else networkSnapshotDir = new File(token[1]).isAbsolute() ? token[1] : dir + token[1];
+			}
+			else if (token[0].equals("matrix-index-directory"))
+			{
+				matrixIndexDir = new File(token[1]).isAbsolute() ? token[1] : dir + token[1];
+			}
+			else if (token[0].equals("prune-network"))
+			{
+				pruneNetwork = Boolean.parseBoolean(token[1]);
+			}
+			else if (token[0].equals("candidate-cache-size"))
+			{
+				candidateCacheSize = Long.parseLong(token[1]);
+			}
+			else if (token[0].equals("compress-random-scores"))
+			{
+				compressRandomScores = Boolean.parseBoolean(token[1]);
+			}
 		}
 		return true;
 		} catch (Exception e)
@@ -0,0 +1,475 @@
+package org.cbio.mutex;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Binary format of the alteration matrix. Opening a file reads only its header, and genes are
+ * decoded from the memory-mapped data when they are first accessed.
+ *
+ * The file starts with the magic number, the format version and the length of the rest of the
+ * header, as big-endian integers. The rest of the header has the number of samples, the number of
+ * genes, the number of bytes per alteration code (1 or 4), the sample names, and the gene index,
+ * which is the ID and the alteration count of each gene. Strings are in modified UTF-8, as written
+ * by DataOutputStream. The data section follows the header, with one fixed-size block per gene in
+ * the order of the index. A block has the bitset of altered samples as little-endian longs, and then
+ * the alteration codes of the samples as little-endian signed integers of the code size.
+ *
+ * @author Ozgun Babur
+ */
+public class MatrixFile
+{
+	private static final int MAGIC = 0x4D58414D; // MXAM
+	private static final int VERSION = 1;
+
+	/**
+	 * Data is mapped in windows of at most this size, each having a whole number of gene blocks.
+	 */
+	private static final long WINDOW_SIZE = 1L << 30;
+
+	private final List<String> samples;
+	private final String[] ids;
+	private final int[] altCnts;
+	private final int codeBytes;
+	private final int words;
+	private final int blockSize;
+	private final int genesPerWindow;
+	private final MappedByteBuffer[] windows;
+
+	private MatrixFile(String file) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(new File(file).toPath(), StandardOpenOption.READ))
+		{
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+				Channels.newInputStream(channel)));
+
+			if (in.readInt() != MAGIC) throw new IOException("Not a binary matrix file: " + file);
+			int version = in.readInt();
+			if (version != VERSION)
+			{
+				throw new IOException("Unsupported binary matrix version " + version + ": " + file);
+			}
+			int headerLength = in.readInt();
+
+			int sampleCnt = in.readInt();
+			int geneCnt = in.readInt();
+			codeBytes = in.readInt();
+			if (codeBytes != 1 && codeBytes != 4)
+			{
+				throw new IOException("Illegal alteration code size " + codeBytes + ": " + file);
+			}
+
+			samples = new ArrayList<>(sampleCnt);
+			for (int i = 0; i < sampleCnt; i++)
+			{
+				samples.add(in.readUTF());
+			}
+
+			ids = new String[geneCnt];
+			altCnts = new int[geneCnt];
+			for (int i = 0; i < geneCnt; i++)
+			{
+				ids[i] = in.readUTF();
+				altCnts[i] = in.readInt();
+			}
+
+			words = BitUtil.wordCount(sampleCnt);
+			blockSize = 8 * words + codeBytes * sampleCnt;
+
+			long dataStart = 12L + headerLength;
+			if (channel.size() < dataStart + (long) blockSize * geneCnt)
+			{
+				throw new IOException("Truncated binary matrix file: " + file);
+			}
+
+			genesPerWindow = (int) Math.max(1, WINDOW_SIZE / Math.max(1, blockSize));
+			windows = new MappedByteBuffer[(geneCnt + genesPerWindow - 1) / genesPerWindow];
+			for (int w = 0; w < windows.length; w++)
+			{
+				int genes = Math.min(genesPerWindow, geneCnt - w * genesPerWindow);
+				windows[w] = channel.map(FileChannel.MapMode.READ_ONLY,
+					dataStart + (long) w * genesPerWindow * blockSize, (long) genes * blockSize);
+			}
+		}
+	}
+
+	/**
+	 * Opens the binary matrix file, reading only its header.
+	 */
+	public static MatrixFile open(String file) throws IOException
+	{
+		return new MatrixFile(file);
+	}
+
+	/**
+	 * Checks if the given file is in the binary matrix format.
+	 */
+	public static boolean isMatrixFile(String file) throws IOException
+	{
+		File f = new File(file);
+		if (!f.isFile() || f.length() < 4) return false;
+
+		try (DataInputStream in = new DataInputStream(new FileInputStream(f)))
+		{
+			return in.readInt() == MAGIC;
+		}
+	}
+
+	public List<String> getSamples()
+	{
+		return Collections.unmodifiableList(samples);
+	}
+
+	public int getGeneCount()
+	{
+		return ids.length;
+	}
+
+	public String getId(int gene)
+	{
+		return ids[gene];
+	}
+
+	public int getAltCnt(int gene)
+	{
+		return altCnts[gene];
+	}
+
+	/**
+	 * Decodes the gene at the given index.
+	 */
+	public GeneAlt read(int gene)
+	{
+		// duplicates have their own positions, so that threads can read at the same time
+		ByteBuffer buf = windows[gene / genesPerWindow].duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		buf.position((gene % genesPerWindow) * blockSize);
+
+		long[] bits = new long[words];
+		buf.asLongBuffer().get(bits);
+		buf.position(buf.position() + 8 * words);
+
+		int[] alterations = new int[samples.size()];
+		if (codeBytes == 1)
+		{
+			for (int i = 0; i < alterations.length; i++)
+			{
+				alterations[i] = buf.get();
+			}
+		}
+		else buf.asIntBuffer().get(alterations);
+
+		return new GeneAlt(ids[gene], alterations, bits);
+	}
+
+	/**
+	 * Creates a map of the given genes, which are decoded when they are first accessed.
+	 * @param index genes to include, mapped to their indices in this file
+	 */
+	public Map<String, GeneAlt> createMap(Map<String, Integer> index)
+	{
+		return new GeneMap(index);
+	}
+
+	/**
+	 * Writes the genes in binary format.
+	 * @param genes genes to write, which should have an alteration for each sample
+	 * @param samples names of the samples
+	 */
+	public static void write(Map<String, GeneAlt> genes, List<String> samples, String file)
+		throws IOException
+	{
+		List<String> ids = new ArrayList<>(genes.keySet());
+		Collections.sort(ids);
+
+		int codeBytes = 1;
+		for (String id : ids)
+		{
+			GeneAlt gene = genes.get(id);
+			if (gene.size() != samples.size())
+			{
+				throw new IOException("Gene " + id + " has " + gene.size() + " values, but there are "
+					+ samples.size() + " samples.");
+			}
+			for (int v : gene.alterations)
+			{
+				if (v < Byte.MIN_VALUE || v > Byte.MAX_VALUE) codeBytes = 4;
+			}
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream header = new DataOutputStream(bytes);
+		header.writeInt(samples.size());
+		header.writeInt(ids.size());
+		header.writeInt(codeBytes);
+		for (String sample : samples)
+		{
+			header.writeUTF(sample);
+		}
+		for (String id : ids)
+		{
+			header.writeUTF(id);
+			header.writeInt(genes.get(id).countAltered());
+		}
+		header.flush();
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+			new FileOutputStream(file))))
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(bytes.size());
+			bytes.writeTo(out);
+
+			int words = BitUtil.wordCount(samples.size());
+			ByteBuffer block = ByteBuffer.allocate(8 * words + codeBytes * samples.size())
+				.order(ByteOrder.LITTLE_ENDIAN);
+
+			for (String id : ids)
+			{
+				GeneAlt gene = genes.get(id);
+				block.clear();
+				block.asLongBuffer().put(gene.getBits(), 0, words);
+				block.position(8 * words);
+				for (int v : gene.alterations)
+				{
+					if (codeBytes == 1) block.put((byte) v);
+					else block.putInt(v);
+				}
+				out.write(block.array(), 0, block.position());
+			}
+		}
+	}
+
+	/**
+	 * Converts a tab-delimited matrix file to the binary format.
+	 */
+	public static void convert(String textFile, String binaryFile) throws IOException
+	{
+		write(new MatrixParser(textFile).parse(), MatrixParser.readSampleNames(textFile), binaryFile);
+	}
+
+	/**
+	 * Map of genes that decodes each gene at its first access. Decoded genes are kept, so there is
+	 * one instance of each gene. Getting genes is thread-safe, but the keys should not change while
+	 * other threads use the map.
+	 */
+	private class GeneMap extends AbstractMap<String, GeneAlt>
+	{
+		/**
+		 * Slots of the genes in the map, in the order of the file. A slot keeps its decoded gene, so
+		 * iterating over the values does not look up the genes again.
+		 */
+		private final Map<String, Slot> slots = new LinkedHashMap<>();
+
+		GeneMap(Map<String, Integer> index)
+		{
+			index.forEach((id, i) -> slots.put(id, new Slot(i, null)));
+		}
+
+		@Override
+		public GeneAlt get(Object key)
+		{
+			Slot slot = slots.get(key);
+			return slot == null ? null : slot.get();
+		}
+
+		@Override
+		public boolean containsKey(Object key)
+		{
+			return slots.containsKey(key);
+		}
+
+		@Override
+		public int size()
+		{
+			return slots.size();
+		}
+
+		@Override
+		public GeneAlt put(String key, GeneAlt value)
+		{
+			Slot slot = slots.get(key);
+			if (slot == null)
+			{
+				slots.put(key, new Slot(-1, value));
+				return null;
+			}
+			GeneAlt old = slot.get();
+			slot.gene = value;
+			return old;
+		}
+
+		@Override
+		public GeneAlt remove(Object key)
+		{
+			Slot slot = slots.remove(key);
+			return slot == null ? null : slot.get();
+		}
+
+		@Override
+		public Collection<GeneAlt> values()
+		{
+			return new AbstractCollection<GeneAlt>()
+			{
+				@Override
+				public Iterator<GeneAlt> iterator()
+				{
+					Iterator<Slot> iter = slots.values().iterator();
+					return new Iterator<GeneAlt>()
+					{
+						@Override
+						public boolean hasNext()
+						{
+							return iter.hasNext();
+						}
+
+						@Override
+						public GeneAlt next()
+						{
+							return iter.next().get();
+						}
+
+						@Override
+						public void remove()
+						{
+							iter.remove();
+						}
+					};
+				}
+
+				@Override
+				public int size()
+				{
+					return slots.size();
+				}
+			};
+		}
+
+		@Override
+		public Set<Entry<String, GeneAlt>> entrySet()
+		{
+			return new AbstractSet<Entry<String, GeneAlt>>()
+			{
+				@Override
+				public Iterator<Entry<String, GeneAlt>> iterator()
+				{
+					Iterator<Entry<String, Slot>> iter = slots.entrySet().iterator();
+					return new Iterator<Entry<String, GeneAlt>>()
+					{
+						@Override
+						public boolean hasNext()
+						{
+							return iter.hasNext();
+						}
+
+						@Override
+						public Entry<String, GeneAlt> next()
+						{
+							Entry<String, Slot> e = iter.next();
+							return new LazyEntry(e.getKey(), e.getValue());
+						}
+
+						@Override
+						public void remove()
+						{
+							iter.remove();
+						}
+					};
+				}
+
+				@Override
+				public int size()
+				{
+					return slots.size();
+				}
+			};
+		}
+
+		/**
+		 * A gene in the map, with its index in the file, or -1 if the gene is put to the map.
+		 */
+		private class Slot
+		{
+			private final int index;
+			private volatile GeneAlt gene;
+
+			Slot(int index, GeneAlt gene)
+			{
+				this.index = index;
+				this.gene = gene;
+			}
+
+			/**
+			 * Gets the gene, decoding it if this is the first access.
+			 */
+			GeneAlt get()
+			{
+				GeneAlt g = gene;
+				if (g == null && index >= 0)
+				{
+					synchronized (this)
+					{
+						g = gene;
+						if (g == null) gene = g = read(index);
+					}
+				}
+				return g;
+			}
+		}
+
+		/**
+		 * Entry that decodes its gene only if its value is requested, so iterating over the keys
+		 * does not decode genes.
+		 */
+		private class LazyEntry implements Entry<String, GeneAlt>
+		{
+			private final String key;
+			private final Slot slot;
+
+			LazyEntry(String key, Slot slot)
+			{
+				this.key = key;
+				this.slot = slot;
+			}
+
+			@Override
+			public String getKey()
+			{
+				return key;
+			}
+
+			@Override
+			public GeneAlt getValue()
+			{
+				return slot.get();
+			}
+
+			@Override
+			public GeneAlt setValue(GeneAlt value)
+			{
+				GeneAlt old = slot.get();
+				slot.gene = value;
+				return old;
+			}
+
+			@Override
+			public boolean equals(Object o)
+			{
+				return o instanceof Entry && key.equals(((Entry) o).getKey()) &&
+					Objects.equals(getValue(), ((Entry) o).getValue());
+			}
+
+			@Override
+			public int hashCode()
+			{
+				return key.hashCode() ^ Objects.hashCode(getValue());
+			}
+		}
+	}
+}
@@ -0,0 +1,283 @@
+package org.cbio.mutex;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Index of the rows of a tab-delimited matrix file, for reading the rows of a few genes without
+ * scanning the whole file. The index is saved to the index directory, in a file named after the
+ * matrix file and a checksum of its path, with the ".idx" extension. It is rebuilt when the size or
+ * the modification time of the matrix changes. Without an index directory, the index is kept only in
+ * memory, so nothing is written next to the data.
+ *
+ * The index file has the magic number, the format version, the size and the modification time
+ * of the matrix file, the number of rows, and then the gene ID, the byte offset and the byte length
+ * of each row, as written by DataOutputStream. If a gene has more than one row, the last one is
+ * indexed.
+ *
+ * @author Ozgun Babur
+ */
+public class MatrixIndex
+{
+	public static final String EXTENSION = ".idx";
+
+	private static final int MAGIC = 0x4D58494E; // MXIN
+	private static final int VERSION = 1;
+
+	/**
+	 * Files larger than this are scanned in consecutive windows.
+	 */
+	private static final long WINDOW_SIZE = 1L << 30;
+
+	/**
+	 * Indexes that are already loaded in this process.
+	 */
+	private static final Map<String, MatrixIndex> LOADED = new ConcurrentHashMap<>();
+
+	/**
+	 * Directory to save the indexes. Indexes are not saved if null.
+	 */
+	private static volatile String directory;
+
+	private final long fileSize;
+	private final long modified;
+
+	/**
+	 * Offset and length of each row.
+	 */
+	private final Map<String, long[]> rows;
+
+	private MatrixIndex(long fileSize, long modified, Map<String, long[]> rows)
+	{
+		this.fileSize = fileSize;
+		this.modified = modified;
+		this.rows = rows;
+	}
+
+	/**
+	 * Sets the directory to save the indexes.
+	 * @param dir the directory, or null to keep the indexes only in memory
+	 */
+	public static void setDirectory(String dir)
+	{
+		directory = dir;
+	}
+
+	/**
+	 * Gets the index file of the given matrix file in the index directory.
+	 */
+	private static File getIndexFile(File file, String dir)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(file.getAbsolutePath().getBytes(StandardCharsets.UTF_8));
+		return new File(dir, file.getName() + "-" + Long.toHexString(crc.getValue()) + EXTENSION);
+	}
+
+	/**
+	 * Gets the index of the given matrix file. The index is loaded from the index directory if it
+	 * is up to date. Otherwise it is built by scanning the matrix, and saved to the index directory
+	 * if possible.
+	 */
+	public static MatrixIndex get(String matrixFile) throws IOException
+	{
+		File file = new File(matrixFile);
+		String key = file.getAbsolutePath();
+
+		MatrixIndex index = LOADED.get(key);
+		if (index != null && index.matches(file)) return index;
+
+		String dir = directory;
+		File indexFile = dir == null ? null : getIndexFile(file, dir);
+		index = indexFile != null && indexFile.exists() ? load(indexFile) : null;
+
+		if (index == null || !index.matches(file))
+		{
+			index = build(file);
+			if (indexFile != null)
+			{
+				try
+				{
+					indexFile.getParentFile().mkdirs();
+					index.save(indexFile);
+				}
+				catch (IOException e)
+				{
+					System.err.println("Cannot write the matrix index " + indexFile + ": " +
+						e.getMessage());
+				}
+			}
+		}
+
+		LOADED.put(key, index);
+		return index;
+	}
+
+	private boolean matches(File file)
+	{
+		return file.length() == fileSize && file.lastModified() == modified;
+	}
+
+	private static MatrixIndex load(File indexFile)
+	{
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+			new FileInputStream(indexFile))))
+		{
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+
+			long fileSize = in.readLong();
+			long modified = in.readLong();
+			int cnt = in.readInt();
+
+			Map<String, long[]> rows = new HashMap<>();
+			for (int i = 0; i < cnt; i++)
+			{
+				String id = in.readUTF();
+				rows.put(id, new long[]{in.readLong(), in.readInt()});
+			}
+			return new MatrixIndex(fileSize, modified, rows);
+		}
+		catch (IOException e)
+		{
+			// a broken index is rebuilt
+			return null;
+		}
+	}
+
+	private void save(File indexFile) throws IOException
+	{
+		// write to a temporary file first, so that other processes never read a partial index
+		File tmp = new File(indexFile.getPath() + "-" + System.nanoTime() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+			new FileOutputStream(tmp))))
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(fileSize);
+			out.writeLong(modified);
+			out.writeInt(rows.size());
+			for (Map.Entry<String, long[]> e : rows.entrySet())
+			{
+				out.writeUTF(e.getKey());
+				out.writeLong(e.getValue()[0]);
+				out.writeInt((int) e.getValue()[1]);
+			}
+		}
+		if (!tmp.renameTo(indexFile))
+		{
+			tmp.delete();
+			throw new IOException("Cannot rename " + tmp);
+		}
+	}
+
+	/**
+	 * Scans the matrix file for the rows.
+	 */
+	private static MatrixIndex build(File file) throws IOException
+	{
+		long modified = file.lastModified();
+		Map<String, long[]> rows = new HashMap<>();
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			long size = channel.size();
+			long pos = 0;
+			boolean header = true;
+
+			while (pos < size)
+			{
+				long len = Math.min(WINDOW_SIZE, size - pos);
+				boolean last = pos + len == size;
+				MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, len);
+
+				int end = (int) len;
+				int i = 0;
+				while (i < end)
+				{
+					int lineEnd = i;
+					int tab = -1;
+					while (lineEnd < end && buf.get(lineEnd) != '\n')
+					{
+						if (tab < 0 && buf.get(lineEnd) == '\t') tab = lineEnd;
+						lineEnd++;
+					}
+					if (lineEnd == end && !last) break;
+
+					if (header) header = false;
+					else
+					{
+						int rowEnd = lineEnd > i && buf.get(lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd;
+						if (rowEnd > i)
+						{
+							int idEnd = tab < 0 ? rowEnd : Math.min(tab, rowEnd);
+							byte[] id = new byte[idEnd - i];
+							for (int j = 0; j < id.length; j++)
+							{
+								id[j] = buf.get(i + j);
+							}
+							rows.put(new String(id, StandardCharsets.UTF_8),
+								new long[]{pos + i, rowEnd - i});
+						}
+					}
+					i = lineEnd + 1;
+				}
+
+				if (i == 0) throw new IOException("A row is longer than " + WINDOW_SIZE +
+					" bytes at position " + pos + " of " + file);
+
+				pos = last ? size : pos + i;
+			}
+			return new MatrixIndex(size, modified, rows);
+		}
+	}
+
+	/**
+	 * Gets the IDs of the indexed genes.
+	 */
+	public Set<String> getGenes()
+	{
+		return Collections.unmodifiableSet(rows.keySet());
+	}
+
+	public boolean contains(String gene)
+	{
+		return rows.containsKey(gene);
+	}
+
+	/**
+	 * Gets the byte offset of the row of the gene, or -1 if not indexed.
+	 */
+	public long getOffset(String gene)
+	{
+		long[] row = rows.get(gene);
+		return row == null ? -1 : row[0];
+	}
+
+	/**
+	 * Reads the row of the given gene, without the line terminator.
+	 * @param channel channel of the matrix file
+	 * @return the row, or null if the gene is not indexed
+	 */
+	public ByteBuffer readRow(FileChannel channel, String gene) throws IOException
+	{
+		long[] row = rows.get(gene);
+		if (row == null) return null;
+
+		ByteBuffer buf = ByteBuffer.allocate((int) row[1]);
+		while (buf.hasRemaining())
+		{
+			if (channel.read(buf, row[0] + buf.position()) < 0)
+			{
+				throw new EOFException("Matrix file is shorter than its index.");
+			}
+		}
+		buf.flip();
+		return buf;
+	}
+}
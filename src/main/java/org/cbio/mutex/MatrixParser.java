@@ -0,0 +1,573 @@
+package org.cbio.mutex;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Parses the tab-delimited alteration matrix. The file is memory-mapped and decoded byte by byte,
+ * without creating a String for each line or cell. Rows of the genes that are not in the symbols
+ * set, or that are altered less than the minimum count, are skipped during the scan. When a gene
+ * limit is set, only the rows that can still be in the limited result are kept.
+ *
+ * The first line is the header. Each other line has the gene symbol and the integer alteration codes
+ * of the samples, separated by tabs. Files in the binary format of MatrixFile are also accepted,
+ * in which case the filters are applied on the gene index, and genes are decoded lazily. When only
+ * some genes are requested from a tab-delimited file, their rows are read using the MatrixIndex of
+ * the file, instead of scanning it. Gzipped tab-delimited files, with names ending in ".gz", are
+ * decoded while they are decompressed.
+ *
+ * @author Ozgun Babur
+ */
+public class MatrixParser
+{
+	/**
+	 * Files larger than this are mapped in consecutive windows. A row has to fit in a window.
+	 */
+	private static final long WINDOW_SIZE = 1L << 30;
+
+	/**
+	 * Initial size of the buffer for decompressed data. It grows if a row does not fit.
+	 */
+	private static final int STREAM_BUFFER_SIZE = 1 << 22;
+
+	private final String file;
+
+	/**
+	 * If present, only these genes are loaded.
+	 */
+	private Set<String> symbols;
+
+	/**
+	 * If present, genes that are altered less than this are skipped.
+	 */
+	private Integer minAltCnt;
+
+	/**
+	 * If present, the number of genes is limited to this.
+	 */
+	private Integer geneLimit;
+
+	/**
+	 * Genes are limited by this ranking if present, otherwise by their alteration counts.
+	 */
+	private Map<String, Integer> rankOf;
+
+	/**
+	 * Reused buffer for the alterations of the current row.
+	 */
+	private int[] row = new int[1024];
+
+	/**
+	 * Whether the next row to parse is the header.
+	 */
+	private boolean header;
+
+	public MatrixParser(String file)
+	{
+		this.file = file;
+	}
+
+	/**
+	 * Sets the genes to load. Others are skipped.
+	 */
+	public void setSymbols(Set<String> symbols)
+	{
+		this.symbols = symbols;
+	}
+
+	/**
+	 * Sets the minimum number of altered samples for a gene to be loaded.
+	 */
+	public void setMinAltCnt(Integer minAltCnt)
+	{
+		this.minAltCnt = minAltCnt;
+	}
+
+	/**
+	 * Sets the maximum number of genes to load. If the loaded genes exceed the limit, genes that are
+	 * not in the ranking are removed, and then the lowest ranked ones until the limit. Without a
+	 * ranking, genes with an alteration count that is not higher than the count of the gene at
+	 * position limit + 2 (in decreasing order of counts) are removed.
+	 * @param geneLimit maximum number of genes
+	 * @param ranking genes ordered by their priority, or null
+	 */
+	public void setGeneLimit(Integer geneLimit, List<String> ranking)
+	{
+		this.geneLimit = geneLimit;
+		if (ranking != null)
+		{
+			rankOf = new HashMap<>();
+			int i = 0;
+			for (String gene : ranking)
+			{
+				// removal starts from the end of the ranking, so the last occurrence counts
+				rankOf.put(gene, i++);
+			}
+		}
+	}
+
+	/**
+	 * Gets the sample names in the header of a tab-delimited or binary matrix file.
+	 */
+	public static List<String> readSampleNames(String file) throws IOException
+	{
+		if (MatrixFile.isMatrixFile(file)) return MatrixFile.open(file).getSamples();
+
+		try (BufferedReader reader = IOUtil.newReader(file))
+		{
+			String line = reader.readLine();
+			if (line == null) return Collections.emptyList();
+			String[] token = line.split("\t");
+			return Arrays.asList(token).subList(1, token.length);
+		}
+	}
+
+	private Limiter createLimiter(Map<String, ?> map)
+	{
+		return geneLimit == null ? null :
+			rankOf == null ? new CountLimiter(map) : new RankLimiter(map);
+	}
+
+	/**
+	 * Parses the file.
+	 * @return genes mapped to their IDs
+	 */
+	public Map<String, GeneAlt> parse() throws IOException
+	{
+		if (IOUtil.isGzipped(file)) return parseStream();
+		if (MatrixFile.isMatrixFile(file)) return parseBinary();
+		if (symbols != null) return parseIndexed();
+
+		Map<String, GeneAlt> map = new HashMap<>();
+		Limiter limiter = createLimiter(map);
+		header = true;
+
+		try (FileChannel channel = FileChannel.open(new File(file).toPath(),
+			StandardOpenOption.READ))
+		{
+			long size = channel.size();
+			long pos = 0;
+
+			while (pos < size)
+			{
+				long len = Math.min(WINDOW_SIZE, size - pos);
+				boolean last = pos + len == size;
+				MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, len);
+
+				// the row at the end of a window continues in the next one
+				int parsed = parseRows(buf, (int) len, last, map, limiter);
+
+				if (parsed == 0 && !last) throw new IOException("A row is longer than " +
+					WINDOW_SIZE + " bytes at position " + pos + " of " + file);
+
+				pos = last ? size : pos + parsed;
+			}
+		}
+
+		if (limiter != null) limiter.finish();
+		return map;
+	}
+
+	/**
+	 * Parses a gzipped file while decompressing it. Decompressed bytes are collected in a buffer,
+	 * and the complete rows in the buffer are decoded in the same way as the mapped files.
+	 */
+	private Map<String, GeneAlt> parseStream() throws IOException
+	{
+		Map<String, GeneAlt> map = new HashMap<>();
+		Limiter limiter = createLimiter(map);
+		header = true;
+
+		try (InputStream in = IOUtil.newInputStream(file))
+		{
+			byte[] bytes = new byte[STREAM_BUFFER_SIZE];
+			int end = 0;
+			while (true)
+			{
+				int n = in.read(bytes, end, bytes.length - end);
+				boolean last = n < 0;
+				if (!last) end += n;
+
+				int parsed = parseRows(ByteBuffer.wrap(bytes), end, last, map, limiter);
+				if (last) break;
+
+				// move the incomplete row to the start
+				end -= parsed;
+				System.arraycopy(bytes, parsed, bytes, 0, end);
+				if (end == bytes.length) bytes = Arrays.copyOf(bytes, bytes.length * 2);
+			}
+		}
+
+		if (limiter != null) limiter.finish();
+		return map;
+	}
+
+	/**
+	 * Parses the complete rows in the buffer. The first row of the file is skipped as the header.
+	 * @param end end of the data in the buffer
+	 * @param last whether the data ends at the end of the file, which completes its last row
+	 * @return length of the parsed part of the buffer
+	 */
+	private int parseRows(ByteBuffer buf, int end, boolean last, Map<String, GeneAlt> map,
+		Limiter limiter)
+	{
+		int i = 0;
+		while (i < end)
+		{
+			int lineEnd = indexOfNewLine(buf, i, end);
+			if (lineEnd < 0)
+			{
+				if (!last) break;
+				lineEnd = end;
+			}
+
+			if (header) header = false;
+			else parseRow(buf, i, lineEnd, map, limiter);
+
+			i = lineEnd + 1;
+		}
+		return Math.min(i, end);
+	}
+
+	/**
+	 * Applies the filters on the gene index of a binary file, and creates a lazy map of the genes
+	 * that pass.
+	 */
+	private Map<String, GeneAlt> parseBinary() throws IOException
+	{
+		MatrixFile matrix = MatrixFile.open(file);
+
+		Map<String, Integer> index = new HashMap<>();
+		Limiter limiter = createLimiter(index);
+
+		for (int i = 0; i < matrix.getGeneCount(); i++)
+		{
+			String id = matrix.getId(i);
+			int altCnt = matrix.getAltCnt(i);
+
+			if (symbols != null && !symbols.contains(id)) continue;
+			if (minAltCnt != null && altCnt < minAltCnt) continue;
+			if (limiter != null && !limiter.accepts(id, altCnt)) continue;
+
+			Integer old = index.put(id, i);
+			if (limiter != null) limiter.added(id, altCnt, old != null);
+		}
+
+		if (limiter != null) limiter.finish();
+		return matrix.createMap(index);
+	}
+
+	/**
+	 * Reads only the rows of the genes in the symbols set, using the row index of the file.
+	 */
+	private Map<String, GeneAlt> parseIndexed() throws IOException
+	{
+		MatrixIndex index = MatrixIndex.get(file);
+
+		List<String> genes = new ArrayList<>();
+		for (String symbol : symbols)
+		{
+			if (index.contains(symbol)) genes.add(symbol);
+		}
+		// read in the file order
+		genes.sort(Comparator.comparingLong(index::getOffset));
+
+		Map<String, GeneAlt> map = new HashMap<>();
+		Limiter limiter = createLimiter(map);
+
+		try (FileChannel channel = FileChannel.open(new File(file).toPath(),
+			StandardOpenOption.READ))
+		{
+			for (String gene : genes)
+			{
+				ByteBuffer row = index.readRow(channel, gene);
+				parseRow(row, 0, row.limit(), map, limiter);
+			}
+		}
+
+		if (limiter != null) limiter.finish();
+		return map;
+	}
+
+	private static int indexOfNewLine(ByteBuffer buf, int from, int end)
+	{
+		for (int i = from; i < end; i++)
+		{
+			if (buf.get(i) == '\n') return i;
+		}
+		return -1;
+	}
+
+	private void parseRow(ByteBuffer buf, int start, int end, Map<String, GeneAlt> map,
+		Limiter limiter)
+	{
+		if (end > start && buf.get(end - 1) == '\r') end--;
+		if (end == start) return;
+
+		int tab = start;
+		while (tab < end && buf.get(tab) != '\t') tab++;
+
+		byte[] idBytes = new byte[tab - start];
+		for (int i = 0; i < idBytes.length; i++)
+		{
+			idBytes[i] = buf.get(start + i);
+		}
+		String id = new String(idBytes, StandardCharsets.UTF_8);
+
+		if (symbols != null && !symbols.contains(id)) return;
+
+		int cnt = 0;
+		int altCnt = 0;
+		int firstEmpty = -1;
+
+		int i = tab + 1;
+		while (i <= end && tab < end)
+		{
+			// fast path for a single digit code
+			byte c = i < end ? buf.get(i) : (byte) '\t';
+			int value;
+			int next;
+			if (c >= '0' && c <= '9' && (i + 1 == end || buf.get(i + 1) == '\t'))
+			{
+				value = c - '0';
+				next = i + 1;
+			}
+			else
+			{
+				next = i;
+				while (next < end && buf.get(next) != '\t') next++;
+
+				if (next == i)
+				{
+					// empty cells are allowed only at the end of the row
+					if (firstEmpty < 0) firstEmpty = cnt;
+					value = 0;
+				}
+				else value = parseInt(buf, i, next, id, cnt);
+			}
+
+			if (next > i && firstEmpty >= 0) throw notInteger(id, firstEmpty, "");
+
+			if (cnt == row.length) row = Arrays.copyOf(row, cnt * 2);
+			row[cnt++] = value;
+			if (value != 0) altCnt++;
+
+			i = next + 1;
+		}
+		if (firstEmpty >= 0) cnt = firstEmpty;
+
+		if (minAltCnt != null && altCnt < minAltCnt) return;
+		if (limiter != null && !limiter.accepts(id, altCnt)) return;
+
+		GeneAlt gene = new GeneAlt(id, Arrays.copyOf(row, cnt));
+		GeneAlt old = map.put(id, gene);
+		if (limiter != null) limiter.added(id, altCnt, old != null);
+	}
+
+	private static int parseInt(ByteBuffer buf, int from, int to, String id, int column)
+	{
+		boolean negative = buf.get(from) == '-';
+		int i = negative || buf.get(from) == '+' ? from + 1 : from;
+		if (i == to) throw notInteger(id, column, decode(buf, from, to));
+
+		long v = 0;
+		for (; i < to; i++)
+		{
+			byte c = buf.get(i);
+			if (c < '0' || c > '9') throw notInteger(id, column, decode(buf, from, to));
+			v = v * 10 + (c - '0');
+			if (v > Integer.MAX_VALUE + 1L) throw notInteger(id, column, decode(buf, from, to));
+		}
+		if (negative) v = -v;
+		if (v > Integer.MAX_VALUE) throw notInteger(id, column, decode(buf, from, to));
+		return (int) v;
+	}
+
+	private static String decode(ByteBuffer buf, int from, int to)
+	{
+		byte[] b = new byte[to - from];
+		for (int i = 0; i < b.length; i++)
+		{
+			b[i] = buf.get(from + i);
+		}
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	private static NumberFormatException notInteger(String id, int column, String value)
+	{
+		System.out.println("Matrix value is not integer. Gene = " + id + ", column = " + column);
+		return new NumberFormatException("For input string: \"" + value + "\"");
+	}
+
+	/**
+	 * Keeps the loaded genes within the gene limit during the scan.
+	 */
+	private abstract class Limiter
+	{
+		final Map<String, ?> map;
+
+		/**
+		 * IDs of all genes that passed the other filters, including the removed ones.
+		 */
+		final Set<String> passed = new HashSet<>();
+
+		Limiter(Map<String, ?> map)
+		{
+			this.map = map;
+		}
+
+		/**
+		 * Checks if the gene can be in the result, before it is created.
+		 */
+		abstract boolean accepts(String id, int altCnt);
+
+		/**
+		 * Records the added gene, and removes the ones that cannot be in the result anymore.
+		 * @param replaced whether the gene replaced an earlier row with the same ID
+		 */
+		abstract void added(String id, int altCnt, boolean replaced);
+
+		/**
+		 * Applies the limit after the scan.
+		 */
+		abstract void finish();
+
+		boolean isOverLimit()
+		{
+			return passed.size() > geneLimit;
+		}
+	}
+
+	/**
+	 * Limits the genes by the ranking.
+	 */
+	private class RankLimiter extends Limiter
+	{
+		/**
+		 * Ranked genes in the map, lowest ranked first.
+		 */
+		private final PriorityQueue<String> ranked = new PriorityQueue<>(
+			(g1, g2) -> Integer.compare(rankOf.get(g2), rankOf.get(g1)));
+
+		private boolean unrankedRemoved;
+
+		RankLimiter(Map<String, ?> map)
+		{
+			super(map);
+		}
+
+		@Override
+		boolean accepts(String id, int altCnt)
+		{
+			passed.add(id);
+			if (!isOverLimit()) return true;
+
+			if (!unrankedRemoved)
+			{
+				map.keySet().removeIf(gene -> !rankOf.containsKey(gene));
+				unrankedRemoved = true;
+			}
+
+			Integer rank = rankOf.get(id);
+			if (rank == null) return false;
+			if (map.containsKey(id)) return true;
+			if (ranked.size() < geneLimit) return true;
+			return !ranked.isEmpty() && rank < rankOf.get(ranked.peek());
+		}
+
+		@Override
+		void added(String id, int altCnt, boolean replaced)
+		{
+			if (rankOf.containsKey(id) && !replaced) ranked.add(id);
+
+			while (map.size() > geneLimit)
+			{
+				map.remove(ranked.poll());
+			}
+		}
+
+		@Override
+		void finish()
+		{
+			// limit is applied during the scan
+		}
+	}
+
+	/**
+	 * Limits the genes by their alteration counts.
+	 */
+	private class CountLimiter extends Limiter
+	{
+		/**
+		 * Genes in the map, least altered first. Only the most altered geneLimit + 2 genes are
+		 * needed to find the threshold.
+		 */
+		private final PriorityQueue<Count> top = new PriorityQueue<>(
+			(c1, c2) -> Integer.compare(c1.altCnt, c2.altCnt));
+
+		CountLimiter(Map<String, ?> map)
+		{
+			super(map);
+		}
+
+		private int capacity()
+		{
+			return geneLimit + 2;
+		}
+
+		@Override
+		boolean accepts(String id, int altCnt)
+		{
+			passed.add(id);
+
+			// a gene that is not more altered than all kept ones would be under the threshold
+			return map.containsKey(id) || top.size() < capacity() || altCnt > top.peek().altCnt;
+		}
+
+		@Override
+		void added(String id, int altCnt, boolean replaced)
+		{
+			if (replaced) top.removeIf(c -> c.id.equals(id));
+			top.add(new Count(id, altCnt));
+
+			while (top.size() > capacity())
+			{
+				map.remove(top.poll().id);
+			}
+		}
+
+		@Override
+		void finish()
+		{
+			if (!isOverLimit()) return;
+
+			// count of the gene at position limit + 2, or the least altered one if there are less
+			List<Count> counts = new ArrayList<>(top);
+			counts.sort((c1, c2) -> Integer.compare(c2.altCnt, c1.altCnt));
+			int thr = counts.get(Math.min(geneLimit + 1, counts.size() - 1)).altCnt;
+
+			System.out.println("Alteration cnt threshold > " + thr);
+			for (Count c : counts)
+			{
+				if (c.altCnt <= thr) map.remove(c.id);
+			}
+		}
+	}
+
+	private static class Count
+	{
+		final String id;
+		final int altCnt;
+
+		Count(String id, int altCnt)
+		{
+			this.id = id;
+			this.altCnt = altCnt;
+		}
+	}
+}
@@ -6,6 +6,10 @@ import org.panda.utility.graph.Graph;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Searcher class for mutex groups on the network.
@@ -24,9 +28,22 @@ public class MutexGreedySearcher implements Serializable
 	private DirectedGraph graph;
 
 	/**
-	 * Random number generator for shuffling operations.
+	 * Seed of the random number generators for shuffling operations. Each null distribution has
+	 * its own generator, seeded using this value and the gene ID.
 	 */
-	Random rand;
+	private long randSeed;
+
+	/**
+	 * Number of threads to use during searches. Seeds are processed in parallel if this is greater
+	 * than 1.
+	 */
+	private int threads = 1;
+
+	/**
+	 * Pool of the search threads, created at the first parallel search. Random runs share the pool
+	 * of the searcher that creates them, so that they do not use more than the given threads.
+	 */
+	private volatile ForkJoinPool pool;
 
 	/**
 	 * A mapping from sample types to sample indices. Needed only if the dataset is heterogeneous, i.e. random
@@ -35,12 +52,48 @@ public class MutexGreedySearcher implements Serializable
 	Map<String, int[]> typeToInds;
 
 	/**
-	 * A null distribution is sampled until the number of values smaller than the current compared
-	 * value is equal to this number, or up to iteration limit.
+	 * Number of values sampled for the null distributions of initial p-values.
+	 */
+	private final LongAdder nullSamples = new LongAdder();
+
+	/**
+	 * Whether genes with similar null-generating conditions share one null distribution. The shared
+	 * distribution is an approximation, as the genes still differ in their candidates.
+	 */
+	private boolean shareNullDists = false;
+
+	/**
+	 * For each gene, the gene whose null distribution it uses. Genes that can be shuffled into the
+	 * same alterations, and that have the same neighborhood in the network, are represented by the
+	 * one with the smallest ID. Created at the first use.
 	 */
-	private static final int LOW_ACCURACY = 10;
-	private static final int HIGH_ACCURACY = 100;
-	private static final double ACCURACY_SWITCH = 0.2;
+	private transient volatile Map<GeneAlt, GeneAlt> nullReps;
+
+	/**
+	 * The network compiled over the genes. Created at the first use, since the genes of the
+	 * searcher can be filtered after its construction.
+	 */
+	private transient volatile CompiledNetwork network;
+
+	/**
+	 * Whether to prune the parts of the network that cannot affect the candidates.
+	 */
+	private boolean pruneNetwork;
+
+	/**
+	 * Memory limit of the candidate cache in bytes. Zero disables the cache.
+	 */
+	private long candidateCacheBytes;
+
+	/**
+	 * Cache of the candidates on the compiled network, created with the network.
+	 */
+	private transient volatile CandidateCache candidateCache;
+
+	/**
+	 * Genes at their indices in the compiled network, filled at their first use.
+	 */
+	private transient volatile GeneAlt[] geneArray;
 
 	/**
 	 * Constructor with network and alterations.
@@ -50,7 +103,7 @@ public class MutexGreedySearcher implements Serializable
 	{
 		this.genes = geneAlts;
 		this.graph = graph;
-		this.rand = new Random();
+		this.randSeed = new Random().nextLong();
 	}
 
 	public void setTypeToInds(Map<String, int[]> typeToInds)
@@ -58,23 +111,158 @@ public class MutexGreedySearcher implements Serializable
 		this.typeToInds = typeToInds;
 	}
 
+	/**
+	 * Sets the sample types to the gene before it is shuffled. Types are set at the first shuffle
+	 * of each gene, so that genes which are decoded lazily are decoded only if they are used.
+	 * Every thread sets the types itself before the shuffle, hence sees them.
+	 * @return the given gene
+	 */
+	private GeneAlt withTypes(GeneAlt gene)
+	{
+		if (typeToInds != null) gene.setTypeMap(typeToInds);
+		return gene;
+	}
+
+	/**
+	 * Sets the random seed to make the search reproducible.
+	 */
+	public void setRandomSeed(long seed)
+	{
+		this.randSeed = seed;
+	}
+
+	/**
+	 * Sets the number of threads to use in searches.
+	 */
+	public void setThreads(int threads)
+	{
+		this.threads = threads;
+	}
+
+	private ForkJoinPool getPool()
+	{
+		ForkJoinPool p = pool;
+		if (p == null)
+		{
+			synchronized (this)
+			{
+				p = pool;
+				if (p == null) pool = p = new ForkJoinPool(threads);
+			}
+		}
+		return p;
+	}
+
+	/**
+	 * Sets whether genes with the same alteration counts and network neighborhood share their null
+	 * distributions of initial p-values.
+	 */
+	public void setShareNullDists(boolean share)
+	{
+		this.shareNullDists = share;
+	}
+
+	/**
+	 * Sets whether to prune the network to the part that can affect the candidates of the genes,
+	 * when it is compiled.
+	 */
+	public void setPruneNetwork(boolean prune)
+	{
+		this.pruneNetwork = prune;
+	}
+
+	/**
+	 * Sets the memory limit of the cache of candidates on the network.
+	 * @param bytes memory limit, or zero to disable the cache
+	 */
+	public void setCandidateCacheSize(long bytes)
+	{
+		this.candidateCacheBytes = bytes;
+	}
+
+	/**
+	 * Gets the hit rate report of the candidate cache, or null if there is no cache.
+	 */
+	public String getCandidateCacheReport()
+	{
+		if (graph != null) getNetwork();
+		CandidateCache cache = candidateCache;
+		return cache == null ? null : cache.getReport();
+	}
+
+	/**
+	 * Gets the sizes of the compiled network, or null if there is no network.
+	 */
+	public String getNetworkReport()
+	{
+		return graph == null ? null : getNetwork().getReport();
+	}
+
+	/**
+	 * Gets the number of values sampled for the null distributions of initial p-values. Each value
+	 * is one greedy search on a shuffled gene.
+	 */
+	public long getNullSampleCount()
+	{
+		return nullSamples.sum();
+	}
+
 	public Map<String, Group> getGroupsOfSeeds(Collection<String> seeds, int maxGroupSize,
 		int randIter)
 	{
-		if (typeToInds != null) genes.values().forEach(g -> g.setTypeMap(typeToInds));
-
 		Progress prg = new Progress(seeds.size(),
 			"Searching for groups of " + seeds.size() + " seeds");
 
-		Map<String, Group> s2g = new HashMap<>();
+		return searchSeeds(seeds, maxGroupSize, randIter, prg);
+	}
+
+	/**
+	 * Runs the greedy search for each seed, in parallel if more than one thread is configured.
+	 * @return groups of the seeds, excluding the seeds that cannot make a group
+	 */
+	private Map<String, Group> searchSeeds(Collection<String> seeds, int maxGroupSize, int randIter,
+		Progress prg)
+	{
+		Map<String, Group> s2g = new ConcurrentHashMap<>();
+
+		if (threads <= 1)
+		{
+			for (String seed : seeds)
+			{
+				searchSeed(seed, maxGroupSize, randIter, s2g, prg);
+			}
+		}
+		else
+		{
+			try
+			{
+				getPool().submit(() -> seeds.parallelStream().forEach(seed ->
+					searchSeed(seed, maxGroupSize, randIter, s2g, prg))).get();
+			}
+			catch (InterruptedException | ExecutionException e)
+			{
+				throw new RuntimeException(e);
+			}
+		}
+
+		// same insertion order with the sequential run
+		Map<String, Group> result = new HashMap<>();
 		for (String seed : seeds)
 		{
-			Group group = getGroupOfSeed(seed, maxGroupSize, randIter);
-			if (group != null) s2g.put(seed, group);
-			prg.tick();
+			if (s2g.containsKey(seed)) result.put(seed, s2g.get(seed));
 		}
+		return result;
+	}
 
-		return s2g;
+	private void searchSeed(String seed, int maxGroupSize, int randIter, Map<String, Group> s2g,
+		Progress prg)
+	{
+		Group group = getGroupOfSeed(seed, maxGroupSize, randIter);
+		if (group != null) s2g.put(seed, group);
+		synchronized (prg)
+		{
+			prg.tick();
+		}
 	}
 
 	private Group getGroupOfSeed(String seed, int maxGroupSize, int randIter)
@@ -82,7 +270,7 @@ public class MutexGreedySearcher implements Serializable
 		GeneAlt gene = genes.get(seed);
 		Group group = new Group(gene);
 
-		Set<GeneAlt> candidates;
+		List<GeneAlt> candidates;
 
 		do
 		{
@@ -102,7 +290,7 @@ public class MutexGreedySearcher implements Serializable
 
 	public void expandGroupIfPossible(Group group, double limitScore, int randIter)
 	{
-		Set<GeneAlt> candidates;
+		List<GeneAlt> candidates;
 
 		do
 		{
@@ -113,54 +301,65 @@ public class MutexGreedySearcher implements Serializable
 		while(true);
 	}
 
+	/**
+	 * Runs the search on a randomized version of the alterations, and gets the final scores of
+	 * the resulting groups. The genes of this searcher are not modified. The run works on shuffled
+	 * views of the genes, hence multiple runs can be executed at the same time.
+	 * @param names seeds to search
+	 * @param noShuffle genes to keep as they are
+	 * @param runSeed random seed for the shuffling and the null distributions of the run
+	 * @return final scores of the groups in the randomized data
+	 */
 	public List<Double> generateRandPvals(Set<String> names, Set<String> noShuffle,
-		int maxGroupSize, int randIter1)
+		int maxGroupSize, int randIter1, long runSeed)
 	{
 		Progress prog = new Progress(names.size(), "Generating a random run for final scores null distribution");
 		List<Double> ll = new ArrayList<Double>(names.size());
 
+		Map<String, GeneAlt> views = new HashMap<>();
 		for (GeneAlt gene : genes.values())
 		{
 			if (noShuffle == null || !noShuffle.contains(gene.getId()))
 			{
-				gene.shuffleSticky();
+				views.put(gene.getId(),
+					withTypes(gene).getShuffledView(new Random(seedOf(runSeed, gene))));
 			}
+			else views.put(gene.getId(), gene);
 		}
 
-		Map<String, Double> map = new HashMap<>();
-		Map<String, Group> groups = new HashMap<>();
-
-		for (String seed : names)
+		MutexGreedySearcher run = new MutexGreedySearcher(views, graph);
+		run.typeToInds = typeToInds;
+		if (graph != null)
 		{
-			if (noShuffle == null || !noShuffle.contains(seed))
-			{
-				Group group = getGroupOfSeed(seed, maxGroupSize, randIter1);
-
-				if (group != null) groups.put(seed, group);
-			}
-			prog.tick();
+			run.network = getNetwork();
+			run.candidateCache = candidateCache;
 		}
+		run.setThreads(threads);
+		if (threads > 1) run.pool = getPool();
+		run.setShareNullDists(shareNullDists);
+		run.setRandomSeed(runSeed);
 
-		for (String seed : groups.keySet())
-		{
-			map.put(seed, groups.get(seed).calcFinalScore());
-		}
+		Set<String> seeds = new HashSet<>(names);
+		if (noShuffle != null) seeds.removeAll(noShuffle);
+		for (int i = seeds.size(); i < names.size(); i++) prog.tick();
 
-		for (GeneAlt gene : genes.values())
-		{
-			if (noShuffle == null || !noShuffle.contains(gene.getId()))
-			{
-				gene.unshuffleSticky();
-			}
-		}
+		Map<String, Group> groups = run.searchSeeds(seeds, maxGroupSize, randIter1, prog);
 
-		for (String s : map.keySet())
+		for (String seed : groups.keySet())
 		{
-			ll.add(map.get(s));
+			ll.add(groups.get(seed).calcFinalScore());
 		}
 		return ll;
 	}
 
+	/**
+	 * Gets a random seed that is specific to the given gene.
+	 */
+	private static long seedOf(long seed, GeneAlt gene)
+	{
+		return seed ^ gene.getId().hashCode() * 0x9E3779B97F4A7C15L;
+	}
+
 	private double calcGeneVal(GeneAlt gene, int maxGroupSize, int randIter)
 	{
 		Group group = new Group(gene);
@@ -169,63 +368,127 @@ public class MutexGreedySearcher implements Serializable
 
 		do
 		{
-			Set<GeneAlt> candidates = determineCandidates(group);
+			List<GeneAlt> candidates = determineCandidates(group);
 			expanded = expandGroup(group, candidates, false, maxGroupSize, randIter);
 		}
 		while(expanded && group.size() < maxGroupSize);
 
-		return group.calcPVals1().get(gene.getId());
+		return group.calcPVals1Array()[0];
 	}
 
+	/**
+	 * Makes sure the null distribution of the gene is sampled enough to get the p-value of the
+	 * given score. The distribution is created at the first call. Concurrent calls for the same
+	 * gene wait for each other instead of sampling twice.
+	 */
 	private void assignNullScoreDistr(GeneAlt gene, int maxGroupSize, int randomIteration,
 		double score)
 	{
-		if (gene.randScores != null &&
-			(gene.randScores.size() == randomIteration || // already met highest
-				(gene.randScores.size() >= HIGH_ACCURACY && gene.randScores.get(HIGH_ACCURACY - 1) <= score) || // already high accuracy
-				((gene.randScores.get((int) (gene.randScores.size() * ACCURACY_SWITCH)) < score) && // only need low accuracy ..
-					(gene.randScores.size() >= LOW_ACCURACY && gene.randScores.get(LOW_ACCURACY - 1) <= score)))) // but already low accuracy
-			return;
+		NullDist dist = gene.randScores;
+		if (dist == null)
+		{
+			GeneAlt rep = getNullRepresentative(gene);
+			synchronized (rep)
+			{
+				dist = rep.randScores;
+				if (dist == null)
+				{
+					dist = new NullDist(randomIteration, seedOf(randSeed, rep));
+					rep.setRandScores(dist);
+				}
+			}
+			gene.setRandScores(dist);
+		}
+
+		if (dist.isSufficientFor(score)) return;
 
-		List<Double> dist = getNullDist(gene, maxGroupSize, randomIteration, gene.randScores, score);
-		Collections.sort(dist);
-		gene.setRandScores(dist);
-		gene.unshuffle();
+		// the view is owned by the sampling thread
+		GeneAlt rep = getNullRepresentative(gene);
+		NullDist d = dist;
+		GeneAlt[] view = new GeneAlt[1];
+		dist.sampleFor(score, () ->
+		{
+			if (view[0] == null) view[0] = withTypes(rep).getShuffledView(d.rand);
+			else view[0].reshuffle(d.rand);
+			nullSamples.increment();
+			return calcGeneVal(view[0], maxGroupSize, randomIteration);
+		});
 	}
 
-	private List<Double> getNullDist(GeneAlt gene, int maxGroupSize, int randomIteration,
-		List<Double> startWith, double forValue)
+	/**
+	 * Gets the gene whose null distribution is used for the given gene.
+	 */
+	private GeneAlt getNullRepresentative(GeneAlt gene)
 	{
-		int cnt = 0;
-		if (startWith == null) startWith = new ArrayList<>();
-		else cnt = countLessThanOrEqual(startWith, forValue);
+		if (!shareNullDists) return gene;
 
-		double p = cnt / (double) startWith.size();
-
-		while ((cnt < LOW_ACCURACY || (cnt < HIGH_ACCURACY && p < ACCURACY_SWITCH)) &&
-			 startWith.size() < randomIteration)
+		Map<GeneAlt, GeneAlt> reps = nullReps;
+		if (reps == null)
 		{
-			gene.shuffle(rand);
-			double val = calcGeneVal(gene, maxGroupSize, randomIteration);
-			startWith.add(val);
-			if (val <= forValue)
+			synchronized (this)
 			{
-				cnt++;
-				p = cnt / (double) startWith.size();
+				reps = nullReps;
+				if (reps == null) nullReps = reps = findNullRepresentatives();
 			}
 		}
-		return startWith;
+
+		GeneAlt rep = reps.get(gene);
+		return rep == null ? gene : rep;
+	}
+
+	/**
+	 * Groups genes by the conditions that generate their null distributions. Without a network,
+	 * only the shuffling is compared, although the candidates of a gene are all the other genes,
+	 * and differ from the candidates of its representative. With a network, genes also need the
+	 * same upstream and downstream.
+	 * @return representative of each gene
+	 */
+	private Map<GeneAlt, GeneAlt> findNullRepresentatives()
+	{
+		Map<String, GeneAlt> keyToRep = new HashMap<>();
+		for (GeneAlt gene : genes.values())
+		{
+			String key = getNullKey(gene);
+			GeneAlt rep = keyToRep.get(key);
+			if (rep == null || gene.getId().compareTo(rep.getId()) < 0) keyToRep.put(key, gene);
+		}
+
+		Map<GeneAlt, GeneAlt> reps = new HashMap<>();
+		for (GeneAlt gene : genes.values())
+		{
+			reps.put(gene, keyToRep.get(getNullKey(gene)));
+		}
+		return reps;
+	}
+
+	private String getNullKey(GeneAlt gene)
+	{
+		String key = withTypes(gene).getShuffleKey();
+		if (graph == null) return key;
+
+		CompiledNetwork net = getNetwork();
+		int node = net.indexOf(gene.getId());
+		return key + "|" + Arrays.toString(net.getUpstream(node)) + "|" +
+			Arrays.toString(net.getDownstream(node));
 	}
 
-	private int countLessThanOrEqual(List<Double> randScore, double val)
+	/**
+	 * Makes sure the null distributions of the candidate and the group members are sampled enough
+	 * to evaluate the p-values that they would have if the candidate is added to the group.
+	 * @param cand candidate gene, or null to consider the current group
+	 */
+	private void assignNullScoreDistrs(Group group, GeneAlt cand, int maxGroupSize, int randIter)
 	{
-		int cnt  = 0;
-		for (Double v : randScore)
+		double[] pv = cand == null ? group.calcPVals1Array() : group.calcFuturePvals1Array(cand);
+		int size = group.members.size();
+
+		// null sampling runs other groups, not this one, so the buffer stays valid in this loop
+		if (cand != null) assignNullScoreDistr(cand, maxGroupSize, randIter, pv[size]);
+
+		for (int i = 0; i < size; i++)
 		{
-			if (v <= val) cnt++;
-			else break;
+			assignNullScoreDistr(group.members.get(i), maxGroupSize, randIter, pv[i]);
 		}
-		return cnt;
 	}
 
 	/**
@@ -233,7 +496,7 @@ public class MutexGreedySearcher implements Serializable
 	 * @param group groups to expand
 	 * @return true if expanded
 	 */
-	private boolean expandGroup(Group group, Set<GeneAlt> candidates, boolean useFinalScore,
+	private boolean expandGroup(Group group, List<GeneAlt> candidates, boolean useFinalScore,
 		int maxGroupSize, int randIter)
 	{
 		if (candidates.isEmpty()) return false;
@@ -245,38 +508,24 @@ public class MutexGreedySearcher implements Serializable
 
 		if (useFinalScore)
 		{
-			Map<String, Double> pv = group.calcPVals1();
-			for (GeneAlt member : group.members)
-			{
-				if (member.randScores == null)
-					assignNullScoreDistr(member, maxGroupSize, randIter, pv.get(member.id));
-			}
+			assignNullScoreDistrs(group, null, maxGroupSize, randIter);
+			best = selectByFinalScore(group, candidates, group.calcFinalScore(), maxGroupSize,
+				randIter);
 		}
-
-		double currentVal = useFinalScore ? group.calcFinalScore() : group.calcScore();
-
-		for (GeneAlt cand : candidates)
+		else
 		{
-			if (useFinalScore)
-			{
-				Map<String, Double> pv = group.calcFuturePvals1(cand);
+			double currentVal = group.calcScore();
 
-				assignNullScoreDistr(cand, maxGroupSize, randIter, pv.get(cand.id));
+			for (GeneAlt cand : candidates)
+			{
+				double future = group.calcFutureScore(cand);
 
-				for (GeneAlt member : group.members)
+				if (future < bestVal && future < currentVal)
 				{
-					assignNullScoreDistr(member, maxGroupSize, randIter, pv.get(member.id));
+					bestVal = future;
+					best = cand;
 				}
 			}
-
-			double future = useFinalScore ? group.calcFutureFinalScore(cand) :
-				group.calcFutureScore(cand);
-
-			if (future < bestVal && future < currentVal)
-			{
-				bestVal = future;
-				best = cand;
-			}
 		}
 
 		if (best != null)
@@ -288,52 +537,106 @@ public class MutexGreedySearcher implements Serializable
 		}
 		else if (useFinalScore && group.members.size() == 1)
 		{
-			return expandGroup(group, candidates, false, maxGroupSize, randIter);
+			return expandGroupByScore(group, candidates, maxGroupSize, randIter);
 		}
 		else return false;
 	}
 
 	/**
-	 * Expands the group with the best candidate in its candidates list.
-	 * @param group groups to expand
+	 * Expands the seed with the candidate of the best score when no candidate improves the final
+	 * score. Null distributions are sampled for the new group as if the candidate was evaluated for
+	 * its final score, so that the final score of the group can be read.
 	 * @return true if expanded
 	 */
-	private boolean expandGroupMore(Group group, Set<GeneAlt> candidates, int maxGroupSize,
-		int randIter, double scoreThr)
+	private boolean expandGroupByScore(Group group, List<GeneAlt> candidates, int maxGroupSize,
+		int randIter)
 	{
-		if (candidates.isEmpty()) return false;
-
-		// Choose the best candidate
-
 		GeneAlt best = null;
 		double bestVal = 1;
+		double currentVal = group.calcScore();
+
+		for (GeneAlt cand : candidates)
+		{
+			double future = group.calcFutureScore(cand);
 
-		Map<String, Double> pv = group.calcPVals1();
-		for (GeneAlt member : group.members)
+			if (future < bestVal && future < currentVal)
+			{
+				bestVal = future;
+				best = cand;
+			}
+		}
+
+		if (best == null) return false;
+
+		assignNullScoreDistrs(group, best, maxGroupSize, randIter);
+		group.addGene(best);
+		return true;
+	}
+
+	/**
+	 * Finds the candidate with the best future final score that is better than the given limit.
+	 * The future score without null distributions is a lower bound for the future final score, since
+	 * final p-values are never smaller than initial p-values. Candidates are visited in the order of
+	 * this bound, and null distributions are sampled only for the candidates whose bound can beat the
+	 * best one so far. Ties are resolved in favor of the earlier candidate in the list, as in a
+	 * visit in the list order.
+	 * @param limit future final score should be less than this value
+	 * @return the best candidate, or null if none is better than the limit
+	 */
+	private GeneAlt selectByFinalScore(Group group, List<GeneAlt> candidates, double limit,
+		int maxGroupSize, int randIter)
+	{
+		int n = candidates.size();
+		double[] bound = new double[n];
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++)
 		{
-			if (member.randScores == null)
-				assignNullScoreDistr(member, maxGroupSize, randIter, pv.get(member.id));
+			bound[i] = group.calcFutureScore(candidates.get(i));
+			order[i] = i;
 		}
+		Arrays.sort(order, Comparator.comparingDouble(i -> bound[i]));
 
-		for (GeneAlt cand : candidates)
+		GeneAlt best = null;
+		double bestVal = 1;
+		int bestInd = -1;
+
+		for (int i : order)
 		{
-			pv = group.calcFuturePvals1(cand);
+			// the rest cannot be better
+			if (bound[i] >= limit || bound[i] > bestVal || (best == null && bound[i] >= bestVal)) break;
 
-			assignNullScoreDistr(cand, maxGroupSize, randIter, pv.get(cand.id));
+			// can only tie, and the tie goes to the earlier candidate
+			if (best != null && bound[i] == bestVal && i > bestInd) continue;
 
-			for (GeneAlt member : group.members)
-			{
-				assignNullScoreDistr(member, maxGroupSize, randIter, pv.get(member.id));
-			}
+			GeneAlt cand = candidates.get(i);
+			assignNullScoreDistrs(group, cand, maxGroupSize, randIter);
 
 			double future = group.calcFutureFinalScore(cand);
 
-			if (future < bestVal && future < scoreThr)
+			if (future < limit && (future < bestVal || (best != null && future == bestVal && i < bestInd)))
 			{
 				bestVal = future;
 				best = cand;
+				bestInd = i;
 			}
 		}
+		return best;
+	}
+
+	/**
+	 * Expands the group with the best candidate in its candidates list.
+	 * @param group groups to expand
+	 * @return true if expanded
+	 */
+	private boolean expandGroupMore(Group group, List<GeneAlt> candidates, int maxGroupSize,
+		int randIter, double scoreThr)
+	{
+		if (candidates.isEmpty()) return false;
+
+		// Choose the best candidate
+
+		assignNullScoreDistrs(group, null, maxGroupSize, randIter);
+		GeneAlt best = selectByFinalScore(group, candidates, scoreThr, maxGroupSize, randIter);
 
 		if (best != null)
 		{
@@ -350,45 +653,80 @@ public class MutexGreedySearcher implements Serializable
 	 * non-fitting ones to the black set.
 	 * @param group group to update candidates
 	 */
-	private Set<GeneAlt> determineCandidates(Group group)
+	private List<GeneAlt> determineCandidates(Group group)
 	{
-		Set<String> candNames = getCandidateNames(group);
-
-		Set<GeneAlt> candidates = new HashSet<>();
+		List<GeneAlt> candidates = new ArrayList<>();
 
-		for (String cand : candNames)
+		if (graph == null)
 		{
-			// the upstream gene is either a candidate or we don't want to re-consider it
+			// every other gene is a candidate, no need to go through names
+			for (GeneAlt candGene : genes.values())
+			{
+				if (group.isOKToConsider(candGene)) candidates.add(candGene);
+			}
+			return candidates;
+		}
+
+		group.useNetwork(getNetwork());
+		long[] cands = group.getCandidateBits(candidateCache);
 
-			GeneAlt candGene = genes.get(cand);
-			if (group.isOKToConsider(candGene))
+		for (int w = 0; w < cands.length; w++)
+		{
+			for (long word = cands[w]; word != 0; word &= word - 1)
 			{
-				candidates.add(candGene);
+				// the upstream gene is either a candidate or we don't want to re-consider it
+
+				GeneAlt candGene = getGene((w << 6) + Long.numberOfTrailingZeros(word));
+				if (candGene != null && group.isOKToConsider(candGene))
+				{
+					candidates.add(candGene);
+				}
 			}
 		}
 
 		return candidates;
 	}
 
-	private Set<String> getCandidateNames(Group group)
+	/**
+	 * Gets the network compiled over the genes.
+	 */
+	private CompiledNetwork getNetwork()
 	{
-		if (graph == null) return getCandidateNamesWithoutUsingGraph(group);
-
-		List<String> members = group.getGeneNames();
-		HashSet<String> candNames = new HashSet<String>(members);
-		Set<String> comm = graph.getLinkedCommonDownstream(candNames);
-		candNames.addAll(comm);
-		candNames.addAll(graph.getUpstream(candNames));
-		candNames.removeAll(members);
-		candNames.retainAll(genes.keySet());
-		return candNames;
+		CompiledNetwork net = network;
+		if (net == null)
+		{
+			synchronized (this)
+			{
+				net = network;
+				if (net == null)
+				{
+					if (candidateCacheBytes > 0) candidateCache = new CandidateCache(candidateCacheBytes);
+					network = net = CompiledNetwork.compile(graph, genes.keySet(), pruneNetwork);
+				}
+			}
+		}
+		return net;
 	}
 
-	private Set<String> getCandidateNamesWithoutUsingGraph(Group group)
+	/**
+	 * Gets the gene at the given index of the compiled network. Genes are looked up at their first
+	 * use, so that lazily loaded genes are not loaded unless needed. Concurrent lookups of the same
+	 * gene get the same object, hence the race on the array is harmless.
+	 */
+	private GeneAlt getGene(int node)
 	{
-		List<String> members = group.getGeneNames();
-		Set<String> comm = new HashSet<String>(genes.keySet());
-		comm.removeAll(members);
-		return comm;
+		GeneAlt[] array = geneArray;
+		if (array == null)
+		{
+			synchronized (this)
+			{
+				if (geneArray == null) geneArray = new GeneAlt[network.getDataGeneCount()];
+				array = geneArray;
+			}
+		}
+
+		GeneAlt gene = array[node];
+		if (gene == null) array[node] = gene = genes.get(network.getName(node));
+		return gene;
 	}
 }
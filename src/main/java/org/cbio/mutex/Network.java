@@ -1,44 +1,369 @@
 package org.cbio.mutex;
 
 import org.biopax.paxtools.pattern.miner.SIFEnum;
+import org.panda.resource.ResourceDirectory;
 import org.panda.resource.network.PathwayCommons;
 import org.panda.utility.graph.DirectedGraph;
 import org.panda.utility.graph.Graph;
 import org.panda.utility.graph.SIFLinker;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
 
 /**
+ * The signaling network.
+ *
+ * Building the network from its resources is slow, hence the relations of each type are saved in a
+ * binary snapshot file, which is loaded in later runs. The snapshot is keyed by the checksums of the
+ * network files, or of the resource files for the default network, so it is rebuilt when any of
+ * them changes. The snapshot file has the magic number,
+ * the format version and the length of the rest of the header, as big-endian integers. The rest of
+ * the header has the key, the node names, the number of relation types, and the type and the edge
+ * count of each type, as written by DataOutputStream. Then the edges of each type follow, in the
+ * same order, as the little-endian integer indices of their source and target nodes.
+ *
  * @author Ozgun Babur
  */
 public class Network extends DirectedGraph
 {
+	private static final int SNAPSHOT_MAGIC = 0x4D584E57; // MXNW
+	private static final int SNAPSHOT_VERSION = 2;
+
+	/**
+	 * Edge type of the merged network.
+	 */
+	private static final String EDGE_TYPE = "is-upstream-of";
+
+	/**
+	 * Networks that are already loaded in this process, by their keys.
+	 */
+	private static final Map<Long, Network> LOADED = new ConcurrentHashMap<>();
+
 	SIFLinker linker;
 
-	public Network(String filename) throws FileNotFoundException
+	/**
+	 * Loaded graphs of each relation type, kept for writing the snapshot.
+	 */
+	private final Map<String, List<DirectedGraph>> typedGraphs = new LinkedHashMap<>();
+
+	public Network(String filename) throws IOException
 	{
 		super("directed network", "is-upstream-of");
 		linker = new SIFLinker();
 		addResource(filename);
 	}
 
-	public Network() throws FileNotFoundException
+	public Network() throws IOException
 	{
-		this(null);
+		this((String) null);
 	}
 
-	public void addResource(String filename) throws FileNotFoundException
+	/**
+	 * Constructor with already loaded graphs of relation types.
+	 * @param graphs graphs mapped to their relation types
+	 */
+	private Network(Map<String, DirectedGraph> graphs)
 	{
-		linker.load(loadPTRGraph(filename));
-		linker.load(loadTRGraph(filename));
-		linker.load(loadIsUpstreamOfGraph(filename));
+		super("directed network", EDGE_TYPE);
+		linker = new SIFLinker();
+		graphs.forEach(this::addGraph);
 		merge(linker.graph);
 	}
 
-	private static DirectedGraph loadTRGraph(String filename) throws FileNotFoundException
+	/**
+	 * Gets the network of the given files, or the default network if no file is given. The network
+	 * is loaded from its snapshot in the given directory if the snapshot is up to date. Otherwise it
+	 * is built from the files and the snapshot is saved. Loaded networks are reused in the same
+	 * process, hence they should not be modified.
+	 * @param files network files, or null for the default network
+	 * @param snapshotDir directory of the snapshots, or null to not use snapshots
+	 */
+	public static Network load(Collection<String> files, String snapshotDir) throws IOException
 	{
-		DirectedGraph graphTR = new DirectedGraph("transcriptional regulation", SIFEnum.CONTROLS_EXPRESSION_OF.getTag());
+		List<String> sorted = files == null ? new ArrayList<>() : new ArrayList<>(new TreeSet<>(files));
+		long key = getSnapshotKey(sorted);
+
+		Network network = LOADED.get(key);
+		if (network != null) return network;
+
+		File snapshot = snapshotDir == null ? null :
+			new File(snapshotDir, "network-" + Long.toHexString(key) + ".snapshot");
+
+		if (snapshot != null && snapshot.exists())
+		{
+			try
+			{
+				network = readSnapshot(snapshot, key);
+			}
+			catch (IOException e)
+			{
+				System.err.println("Cannot read the network snapshot " + snapshot + ": " + e.getMessage());
+			}
+		}
+
+		if (network == null)
+		{
+			if (sorted.isEmpty()) network = new Network();
+			else
+			{
+				for (String file : sorted)
+				{
+					if (network == null) network = new Network(file);
+					else network.addResource(file);
+				}
+			}
+
+			if (snapshot != null)
+			{
+				try
+				{
+					network.writeSnapshot(snapshot, key);
+				}
+				catch (IOException e)
+				{
+					System.err.println("Cannot write the network snapshot " + snapshot + ": " + e.getMessage());
+				}
+			}
+		}
+
+		LOADED.put(key, network);
+		return network;
+	}
+
+	/**
+	 * Gets the CRC-32 of the network files, with the snapshot format version and the file names.
+	 * The default network is identified by an empty list of files, and by the names, sizes and
+	 * modification times of the files in the resource directory, which has the PathwayCommons data.
+	 */
+	private static long getSnapshotKey(List<String> files) throws IOException
+	{
+		CRC32 crc = new CRC32();
+		crc.update(SNAPSHOT_VERSION);
+		if (files.isEmpty()) updateWithResources(crc, new File(ResourceDirectory.get()));
+		byte[] buf = new byte[1 << 16];
+		for (String file : files)
+		{
+			crc.update(new File(file).getName().getBytes(StandardCharsets.UTF_8));
+			try (InputStream in = new FileInputStream(file))
+			{
+				for (int n = in.read(buf); n >= 0; n = in.read(buf))
+				{
+					crc.update(buf, 0, n);
+				}
+			}
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Updates the checksum with the names, sizes and modification times of the files under the
+	 * given directory. Reading the whole resources would take as long as loading them.
+	 */
+	private static void updateWithResources(CRC32 crc, File dir)
+	{
+		File[] files = dir.listFiles();
+		if (files == null) return;
+		Arrays.sort(files);
+
+		ByteBuffer buf = ByteBuffer.allocate(16);
+		for (File file : files)
+		{
+			crc.update(file.getName().getBytes(StandardCharsets.UTF_8));
+			if (file.isDirectory()) updateWithResources(crc, file);
+			else
+			{
+				buf.clear();
+				buf.putLong(file.length()).putLong(file.lastModified());
+				crc.update(buf.array());
+			}
+		}
+	}
+
+	private void writeSnapshot(File snapshot, long key) throws IOException
+	{
+		// typed graphs can have genes that did not make it into the merged graph
+		Set<String> symbols = new TreeSet<>(getSymbols());
+		for (List<DirectedGraph> graphs : typedGraphs.values())
+		{
+			for (DirectedGraph graph : graphs)
+			{
+				symbols.addAll(graph.getSymbols());
+			}
+		}
+		List<String> names = new ArrayList<>(symbols);
+		Map<String, Integer> index = new HashMap<>();
+		for (int i = 0; i < names.size(); i++)
+		{
+			index.put(names.get(i), i);
+		}
+
+		// edges of a type are united over the resources
+		List<String> types = new ArrayList<>();
+		List<Integer> edgeCnts = new ArrayList<>();
+		IntBuffer edges = IntBuffer.allocate(1024);
+		for (String type : typedGraphs.keySet())
+		{
+			int start = edges.position();
+			for (String source : names)
+			{
+				Set<String> targets = new TreeSet<>();
+				for (DirectedGraph graph : typedGraphs.get(type))
+				{
+					targets.addAll(graph.getDownstream(source));
+				}
+				for (String target : targets)
+				{
+					if (edges.remaining() < 2)
+					{
+						IntBuffer larger = IntBuffer.allocate(edges.capacity() * 2);
+						edges.flip();
+						edges = larger.put(edges);
+					}
+					edges.put(index.get(source)).put(index.get(target));
+				}
+			}
+			types.add(type);
+			edgeCnts.add((edges.position() - start) / 2);
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream header = new DataOutputStream(bytes);
+		header.writeLong(key);
+		header.writeInt(names.size());
+		for (String name : names)
+		{
+			header.writeUTF(name);
+		}
+		header.writeInt(types.size());
+		for (int i = 0; i < types.size(); i++)
+		{
+			header.writeUTF(types.get(i));
+			header.writeInt(edgeCnts.get(i));
+		}
+		header.flush();
+
+		snapshot.getParentFile().mkdirs();
+
+		// write to a temporary file first, so that other processes never read a partial snapshot
+		File tmp = new File(snapshot.getPath() + "-" + System.nanoTime() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(IOUtil.newOutputStream(tmp.getPath())))
+		{
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(SNAPSHOT_VERSION);
+			out.writeInt(bytes.size());
+			bytes.writeTo(out);
+
+			ByteBuffer buf = ByteBuffer.allocate(4 * edges.position())
+				.order(ByteOrder.LITTLE_ENDIAN);
+			buf.asIntBuffer().put(edges.array(), 0, edges.position());
+			out.write(buf.array());
+		}
+		if (!tmp.renameTo(snapshot))
+		{
+			tmp.delete();
+			throw new IOException("Cannot rename " + tmp);
+		}
+	}
+
+	/**
+	 * Reads the snapshot file.
+	 * @return the network, or null if the snapshot has a different key
+	 */
+	private static Network readSnapshot(File snapshot, long key) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(snapshot.toPath(), StandardOpenOption.READ))
+		{
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+				Channels.newInputStream(channel)));
+
+			if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) return null;
+			int headerLength = in.readInt();
+			if (in.readLong() != key) return null;
+
+			String[] names = new String[in.readInt()];
+			for (int i = 0; i < names.length; i++)
+			{
+				names[i] = in.readUTF();
+			}
+
+			String[] types = new String[in.readInt()];
+			int[] edgeCnts = new int[types.length];
+			long edgeCnt = 0;
+			for (int i = 0; i < types.length; i++)
+			{
+				types[i] = in.readUTF();
+				edgeCnts[i] = in.readInt();
+				edgeCnt += edgeCnts[i];
+			}
+
+			long dataStart = 12L + headerLength;
+			if (channel.size() < dataStart + 8L * edgeCnt)
+			{
+				throw new IOException("Truncated network snapshot: " + snapshot);
+			}
+			IntBuffer edges = channel.map(FileChannel.MapMode.READ_ONLY, dataStart, 8L * edgeCnt)
+				.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+
+			// relations are put to the graphs from the mapped indices, without parsing
+			Map<String, DirectedGraph> graphs = new LinkedHashMap<>();
+			for (int t = 0; t < types.length; t++)
+			{
+				DirectedGraph graph = createGraph(types[t]);
+				for (int i = 0; i < edgeCnts[t]; i++)
+				{
+					graph.putRelation(names[edges.get()], names[edges.get()]);
+				}
+				graphs.put(types[t], graph);
+			}
+			return new Network(graphs);
+		}
+	}
+
+	public void addResource(String filename) throws IOException
+	{
+		addGraph(SIFEnum.CONTROLS_STATE_CHANGE_OF.getTag(), loadPTRGraph(filename));
+		addGraph(SIFEnum.CONTROLS_EXPRESSION_OF.getTag(), loadTRGraph(filename));
+		addGraph(EDGE_TYPE, loadIsUpstreamOfGraph(filename));
+		merge(linker.graph);
+	}
+
+	/**
+	 * Gives the graph of the relation type to the linker.
+	 */
+	private void addGraph(String type, DirectedGraph graph)
+	{
+		typedGraphs.computeIfAbsent(type, t -> new ArrayList<>()).add(graph);
+		linker.load(graph);
+	}
+
+	/**
+	 * Creates an empty graph for the given relation type.
+	 */
+	private static DirectedGraph createGraph(String type)
+	{
+		if (type.equals(SIFEnum.CONTROLS_STATE_CHANGE_OF.getTag()))
+		{
+			return new DirectedGraph("signaling", type);
+		}
+		else if (type.equals(SIFEnum.CONTROLS_EXPRESSION_OF.getTag()))
+		{
+			return new DirectedGraph("transcriptional regulation", type);
+		}
+		else return new DirectedGraph("signaling relations", type);
+	}
+
+	private static DirectedGraph loadTRGraph(String filename) throws IOException
+	{
+		DirectedGraph graphTR = createGraph(SIFEnum.CONTROLS_EXPRESSION_OF.getTag());
 
 		if (filename == null)
 		{
@@ -48,14 +373,17 @@ public class Network extends DirectedGraph
 		}
 		else
 		{
-			graphTR.load(new FileInputStream(filename), Collections.singleton(SIFEnum.CONTROLS_EXPRESSION_OF.getTag()));
+			try (InputStream in = IOUtil.newInputStream(filename))
+			{
+				graphTR.load(in, Collections.singleton(SIFEnum.CONTROLS_EXPRESSION_OF.getTag()));
+			}
 		}
 		return graphTR;
 	}
 
-	private static DirectedGraph loadPTRGraph(String filename) throws FileNotFoundException
+	private static DirectedGraph loadPTRGraph(String filename) throws IOException
 	{
-		DirectedGraph graphSig = new DirectedGraph("signaling", SIFEnum.CONTROLS_STATE_CHANGE_OF.getTag());
+		DirectedGraph graphSig = createGraph(SIFEnum.CONTROLS_STATE_CHANGE_OF.getTag());
 		if (filename == null)
 		{
 			graphSig.merge((DirectedGraph) PathwayCommons.get().getGraph(SIFEnum.CONTROLS_STATE_CHANGE_OF));
@@ -64,21 +392,30 @@ public class Network extends DirectedGraph
 		}
 		else
 		{
-			graphSig.load(new FileInputStream(filename), Collections.singleton(SIFEnum.CONTROLS_STATE_CHANGE_OF.getTag()));
+			try (InputStream in = IOUtil.newInputStream(filename))
+			{
+				graphSig.load(in, Collections.singleton(SIFEnum.CONTROLS_STATE_CHANGE_OF.getTag()));
+			}
 		}
 		return graphSig;
 	}
 
-	private static DirectedGraph loadIsUpstreamOfGraph(String filename) throws FileNotFoundException
+	private static DirectedGraph loadIsUpstreamOfGraph(String filename) throws IOException
 	{
-		DirectedGraph graph = new DirectedGraph("signaling relations", "is-upstream-of");
+		DirectedGraph graph = createGraph(EDGE_TYPE);
 
-		if (filename != null) graph.load(new FileInputStream(filename), Collections.singleton("is-upstream-of"));
+		if (filename != null)
+		{
+			try (InputStream in = IOUtil.newInputStream(filename))
+			{
+				graph.load(in, Collections.singleton("is-upstream-of"));
+			}
+		}
 
 		return graph;
 	}
 
-	public static void main(String[] args) throws FileNotFoundException
+	public static void main(String[] args) throws IOException
 	{
 		try
 		{
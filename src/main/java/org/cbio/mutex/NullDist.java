@@ -0,0 +1,490 @@
+package org.cbio.mutex;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Estimated null distribution of the initial p-value of a gene, sampled lazily.
+ *
+ * The distribution is sampled in tiers of increasing size, and the p-value of a score is always
+ * read from the smallest tier that gives the required accuracy for that score. Sampled values come
+ * from the random stream of this distribution. Hence the p-value of a score depends only on the
+ * random seed, and not on which scores were queried before or by which thread. This makes parallel
+ * searches reproduce the sequential search when the random seed is fixed.
+ *
+ * Values of each tier are kept sorted in a primitive array, so that the rank of a score is found with
+ * a binary search per tier. A newly sampled tier is sorted on its own, and appended, without touching
+ * the previous tiers.
+ *
+ * Only the values that a p-value can depend on are stored. A score reaches a tier only if there are
+ * less than HIGH_ACCURACY values smaller than or equal to it in the previous tiers. So a tier keeps
+ * only its values that are not larger than the HIGH_ACCURACY-th smallest value of the previous
+ * tiers, and this does not change any p-value.
+ *
+ * There is also a global memory budget for all distributions. When it is exceeded, distributions
+ * of the least recently used genes are compressed to single precision. A p-value read from a
+ * compressed distribution can change only if a null value is within the single precision error of
+ * the score. Such reads are counted and reported.
+ *
+ * Reading is lock-free. Sampling is done by one thread at a time, and sampled tiers are published
+ * only after they are complete.
+ *
+ * @author Ozgun Babur
+ */
+public class NullDist
+{
+	/**
+	 * A null distribution is sampled until the number of values smaller than the current compared
+	 * value is equal to this number, or up to iteration limit.
+	 */
+	static final int LOW_ACCURACY = 10;
+	static final int HIGH_ACCURACY = 100;
+	static final double ACCURACY_SWITCH = 0.2;
+
+	/**
+	 * Each tier is this much larger than the previous tier.
+	 */
+	private static final double TIER_GROWTH = 1.5;
+
+	/**
+	 * Relative error of storing a value in single precision.
+	 */
+	public static final double FLOAT_ERROR = Math.ulp(1f);
+
+	/**
+	 * Memory limit for all null distributions in bytes. Zero means no limit.
+	 */
+	private static volatile long memoryLimit = 0;
+
+	/**
+	 * Memory use of the live distributions, updated at each sampling.
+	 */
+	private static final AtomicLong memoryUse = new AtomicLong();
+
+	/**
+	 * Memory use that triggers the next check of the budget.
+	 */
+	private static final AtomicLong nextCheck = new AtomicLong(Long.MAX_VALUE);
+
+	/**
+	 * All created distributions. References are weak, so that distributions of discarded genes,
+	 * such as shuffled views of a random run, can be collected. References of the collected ones
+	 * are removed at the next creation of a distribution.
+	 */
+	private static final Set<WeakReference<NullDist>> all = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Queue of the references whose distributions are collected.
+	 */
+	private static final ReferenceQueue<NullDist> collected = new ReferenceQueue<>();
+
+	/**
+	 * Clock for deciding the least recently used distributions. Ticks at each sampling.
+	 */
+	private static final AtomicLong clock = new AtomicLong();
+
+	private static final LongAdder compressions = new LongAdder();
+	private static final LongAdder compressedReads = new LongAdder();
+	private static final LongAdder uncertainReads = new LongAdder();
+
+	/**
+	 * Sizes of the tiers, last one being the iteration limit.
+	 */
+	private final int[] tierEnds;
+
+	/**
+	 * Random number generator that belongs to this distribution.
+	 */
+	final Random rand;
+
+	/**
+	 * Sampled tiers.
+	 */
+	private volatile Tiers tiers;
+
+	/**
+	 * Sorted HIGH_ACCURACY smallest values of the sampled tiers. Used only during sampling.
+	 */
+	private double[] lowest;
+
+	/**
+	 * Clock time of the last use.
+	 */
+	private volatile long lastUse;
+
+	/**
+	 * Constructor with the iteration limit and the random seed.
+	 * @param limit maximum size of the distribution
+	 * @param seed random seed for the sampling
+	 */
+	public NullDist(int limit, long seed)
+	{
+		this.tierEnds = getTierEnds(limit);
+		this.rand = new Random(seed);
+		this.tiers = new Tiers(new int[]{0}, new double[0], null);
+		this.lowest = new double[0];
+		for (Reference<? extends NullDist> ref = collected.poll(); ref != null; ref = collected.poll())
+		{
+			all.remove(ref);
+		}
+		all.add(new WeakReference<>(this, collected));
+	}
+
+	private static int[] getTierEnds(int limit)
+	{
+		int[] ends = new int[64];
+		int cnt = 0;
+		int end = Math.min(LOW_ACCURACY, limit);
+		ends[cnt++] = end;
+		while (end < limit)
+		{
+			end = (int) Math.min(limit, Math.ceil(end * TIER_GROWTH));
+			ends[cnt++] = end;
+		}
+		return Arrays.copyOf(ends, cnt);
+	}
+
+	/**
+	 * Sets the memory limit for all null distributions.
+	 * @param bytes the limit, or zero for no limit
+	 */
+	public static void setMemoryLimit(long bytes)
+	{
+		memoryLimit = bytes;
+		nextCheck.set(bytes > 0 ? bytes : Long.MAX_VALUE);
+	}
+
+	/**
+	 * Checks if the given count of values less than or equal to a score gives enough accuracy
+	 * within the given number of samples.
+	 */
+	private boolean isAccurate(int cnt, int size)
+	{
+		return size >= tierEnds[tierEnds.length - 1] ||
+			!(cnt < LOW_ACCURACY || (cnt < HIGH_ACCURACY && cnt / (double) size < ACCURACY_SWITCH));
+	}
+
+	/**
+	 * Finds the smallest sampled tier that is accurate for the given score.
+	 * @return index of the tier, or -1 if a larger tier is needed
+	 */
+	private int findTier(double score, Tiers tr)
+	{
+		int cnt = 0;
+		for (int t = 0; t < tr.count(); t++)
+		{
+			cnt += tr.countLessThanOrEqual(t, score);
+			if (isAccurate(cnt, tierEnds[t])) return t;
+		}
+		return -1;
+	}
+
+	/**
+	 * Checks if the distribution is sampled enough to get the p-value of the given score.
+	 */
+	public boolean isSufficientFor(double score)
+	{
+		return findTier(score, tiers) >= 0;
+	}
+
+	/**
+	 * Samples more tiers until the p-value of the given score can be read.
+	 * @param score the score to get p-value
+	 * @param sampler generator of null values
+	 */
+	public void sampleFor(double score, DoubleSupplier sampler)
+	{
+		if (isSufficientFor(score)) return;
+
+		long added = 0;
+		synchronized (this)
+		{
+			lastUse = clock.incrementAndGet();
+
+			while (tiers.count() < tierEnds.length && findTier(score, tiers) < 0)
+			{
+				Tiers tr = tiers;
+				int t = tr.count();
+				int from = t == 0 ? 0 : tierEnds[t - 1];
+				int to = tierEnds[t];
+
+				double[] chunk = new double[to - from];
+				for (int i = 0; i < chunk.length; i++)
+				{
+					chunk[i] = sampler.getAsDouble();
+				}
+				Arrays.sort(chunk);
+
+				// values that are larger than the current threshold cannot affect any p-value
+				int keep = lowest.length < HIGH_ACCURACY ? chunk.length :
+					upperBound(chunk, 0, chunk.length, lowest[HIGH_ACCURACY - 1]);
+
+				lowest = t == tierEnds.length - 1 ? null : mergeLowest(lowest, chunk);
+
+				Tiers next = tr.append(chunk, keep);
+				added += next.bytes() - tr.bytes();
+				tiers = next;
+			}
+		}
+
+		if (added != 0 && memoryUse.addAndGet(added) > nextCheck.get()) checkBudget();
+	}
+
+	/**
+	 * Merges the given sorted arrays, keeping at most HIGH_ACCURACY smallest values.
+	 */
+	private static double[] mergeLowest(double[] a, double[] b)
+	{
+		double[] m = new double[Math.min(HIGH_ACCURACY, a.length + b.length)];
+		int i = 0, j = 0;
+		for (int k = 0; k < m.length; k++)
+		{
+			m[k] = j >= b.length || (i < a.length && a[i] <= b[j]) ? a[i++] : b[j++];
+		}
+		return m;
+	}
+
+	/**
+	 * Gets the ratio of null values that are less than or equal to the given score. If the
+	 * distribution is not sampled enough for this score, the largest sampled tier is used.
+	 * @param score the score
+	 * @return p-value of the score
+	 */
+	public double getPvalOfScore(double score)
+	{
+		Tiers tr = tiers;
+		if (tr.count() == 0) return 1;
+
+		long now = clock.get();
+		if (lastUse != now) lastUse = now;
+
+		int tier = findTier(score, tr);
+		if (tier < 0) tier = tr.count() - 1;
+
+		int cnt = 0;
+		for (int t = 0; t <= tier; t++)
+		{
+			cnt += tr.countLessThanOrEqual(t, score);
+		}
+
+		if (tr.floats != null)
+		{
+			compressedReads.increment();
+			if (tr.isUncertain(tier, score)) uncertainReads.increment();
+		}
+
+		return cnt / (double) tierEnds[tier];
+	}
+
+	/**
+	 * Gets the number of sampled values.
+	 */
+	public int size()
+	{
+		int t = tiers.count();
+		return t == 0 ? 0 : tierEnds[t - 1];
+	}
+
+	/**
+	 * Converts the stored values to single precision.
+	 * @return bytes freed
+	 */
+	private synchronized long compress()
+	{
+		Tiers tr = tiers;
+		if (tr.floats != null) return 0;
+
+		Tiers c = tr.toFloat();
+		tiers = c;
+		compressions.increment();
+		return tr.bytes() - c.bytes();
+	}
+
+	/**
+	 * Compresses the least recently used distributions until the memory use is below three quarters
+	 * of the limit.
+	 */
+	private static synchronized void checkBudget()
+	{
+		long limit = memoryLimit;
+		if (limit <= 0) return;
+
+		// recount, as some distributions may have been collected
+		List<NullDist> live = new ArrayList<>();
+		long use = 0;
+		for (Iterator<WeakReference<NullDist>> iter = all.iterator(); iter.hasNext();)
+		{
+			NullDist d = iter.next().get();
+			if (d == null) iter.remove();
+			else
+			{
+				live.add(d);
+				use += d.tiers.bytes();
+			}
+		}
+
+		if (use > limit)
+		{
+			live.sort(Comparator.comparingLong(d -> d.lastUse));
+			for (NullDist d : live)
+			{
+				if (use <= limit * 3 / 4) break;
+				use -= d.compress();
+			}
+		}
+
+		memoryUse.set(use);
+		nextCheck.set(Math.max(limit, use + limit / 4));
+	}
+
+	/**
+	 * Gets a report of the memory use and the precision loss of null distributions.
+	 */
+	public static String getReport()
+	{
+		long bytes = 0;
+		int cnt = 0;
+		int compressed = 0;
+		for (WeakReference<NullDist> ref : all)
+		{
+			NullDist d = ref.get();
+			if (d != null)
+			{
+				Tiers tr = d.tiers;
+				bytes += tr.bytes();
+				cnt++;
+				if (tr.floats != null) compressed++;
+			}
+		}
+
+		String s = String.format("Null distributions: %d in memory, %.1f MB", cnt, bytes / 1E6);
+		if (compressions.sum() > 0)
+		{
+			s += String.format(", %d compressed to single precision (relative error %.1e), " +
+				"%d of %d reads from compressed distributions may have lost precision", compressed,
+				FLOAT_ERROR, uncertainReads.sum(), compressedReads.sum());
+		}
+		return s;
+	}
+
+	/**
+	 * Counts the values that are less than or equal to the given score in the given sorted range.
+	 */
+	private static int upperBound(double[] vals, int from, int to, double score)
+	{
+		int lo = from;
+		int hi = to;
+		while (lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if (vals[mid] <= score) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo - from;
+	}
+
+	private static int upperBound(float[] vals, int from, int to, double score)
+	{
+		int lo = from;
+		int hi = to;
+		while (lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if (vals[mid] <= score) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo - from;
+	}
+
+	/**
+	 * Immutable set of sampled tiers. Values of tier t are between the indices starts[t] and
+	 * starts[t + 1], sorted. Either doubles or floats is used.
+	 */
+	private static final class Tiers
+	{
+		final int[] starts;
+		final double[] doubles;
+		final float[] floats;
+
+		Tiers(int[] starts, double[] doubles, float[] floats)
+		{
+			this.starts = starts;
+			this.doubles = doubles;
+			this.floats = floats;
+		}
+
+		int count()
+		{
+			return starts.length - 1;
+		}
+
+		int countLessThanOrEqual(int t, double score)
+		{
+			return doubles != null ? upperBound(doubles, starts[t], starts[t + 1], score) :
+				upperBound(floats, starts[t], starts[t + 1], score);
+		}
+
+		/**
+		 * Checks if any value in the tiers up to the given one is so close to the score that the
+		 * single precision error can change the comparison.
+		 */
+		boolean isUncertain(int tier, double score)
+		{
+			double tolerance = Math.abs(score) * FLOAT_ERROR;
+			for (int t = 0; t <= tier; t++)
+			{
+				int i = starts[t] + upperBound(floats, starts[t], starts[t + 1], score);
+				if (i > starts[t] && score - floats[i - 1] <= tolerance) return true;
+				if (i < starts[t + 1] && floats[i] - score <= tolerance) return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Appends a sorted tier, keeping its first given number of values.
+		 */
+		Tiers append(double[] chunk, int keep)
+		{
+			int t = count();
+			int[] st = Arrays.copyOf(starts, t + 2);
+			st[t + 1] = starts[t] + keep;
+
+			if (doubles != null)
+			{
+				double[] v = Arrays.copyOf(doubles, st[t + 1]);
+				System.arraycopy(chunk, 0, v, starts[t], keep);
+				return new Tiers(st, v, null);
+			}
+			else
+			{
+				float[] v = Arrays.copyOf(floats, st[t + 1]);
+				for (int i = 0; i < keep; i++)
+				{
+					v[starts[t] + i] = (float) chunk[i];
+				}
+				return new Tiers(st, null, v);
+			}
+		}
+
+		Tiers toFloat()
+		{
+			float[] v = new float[doubles.length];
+			for (int i = 0; i < v.length; i++)
+			{
+				v[i] = (float) doubles[i];
+			}
+			return new Tiers(starts, null, v);
+		}
+
+		long bytes()
+		{
+			return 4L * starts.length + (doubles != null ? 8L * doubles.length : 4L * floats.length);
+		}
+	}
+}
@@ -0,0 +1,272 @@
+package org.cbio.mutex;
+
+import java.util.Arrays;
+
+/**
+ * Bounded-memory summary of the final scores of random runs. The lowest scores are kept exactly,
+ * because FDR cutoffs are decided on the low tail. Scores above the exact tail are counted in a
+ * histogram with logarithmic bins.
+ *
+ * Counting the scores that are less than or equal to a value is exact if the value is not above the
+ * largest exact score. Otherwise the count of the histogram bin that contains the value is included
+ * whole, so the count can exceed the true count by at most the size of that bin. Consequently an
+ * estimated FDR is never below its exact value, and exceeds it by at most the bin size divided by
+ * the number of random runs and the rank of the result. Bins are BINS_PER_DECADE per decade, i.e.
+ * the scores in a bin differ by less than 1.2%.
+ *
+ * Sketches can be merged. A sketch with unlimited capacity keeps all scores exactly.
+ *
+ * @author Ozgun Babur
+ */
+public class NullScoreSketch
+{
+	public static final int BINS_PER_DECADE = 200;
+
+	/**
+	 * Decade range of the histogram. Scores outside are counted in the first or the last bin.
+	 */
+	private static final int MIN_DECADE = -324;
+	private static final int MAX_DECADE = 1;
+	private static final int BINS = (MAX_DECADE - MIN_DECADE) * BINS_PER_DECADE + 1;
+
+	/**
+	 * Number of lowest scores to keep exactly.
+	 */
+	private final int capacity;
+
+	/**
+	 * Exact scores. All are less than or equal to the boundary.
+	 */
+	private double[] exact = new double[16];
+	private int exactSize;
+	private boolean sorted = true;
+
+	/**
+	 * Exact scores are compacted back to the capacity when they reach this size.
+	 */
+	private long compactAt;
+
+	/**
+	 * Scores above this value are in the histogram. Infinity until the first compaction.
+	 */
+	private double boundary = Double.POSITIVE_INFINITY;
+
+	/**
+	 * Counts of the scores above the boundary, created on first use.
+	 */
+	private long[] bins;
+
+	private long histogramSize;
+
+	/**
+	 * Constructor with the number of lowest scores to keep exactly.
+	 * @param capacity number of exact scores, or a non-positive value to keep all scores exactly
+	 */
+	public NullScoreSketch(int capacity)
+	{
+		this.capacity = capacity > 0 ? capacity : Integer.MAX_VALUE;
+		this.compactAt = 2L * this.capacity;
+	}
+
+	private static int binOf(double v)
+	{
+		if (!(v > 0)) return 0;
+		double b = Math.floor((Math.log10(v) - MIN_DECADE) * BINS_PER_DECADE);
+		if (b < 0) return 0;
+		if (b >= BINS) return BINS - 1;
+		return (int) b;
+	}
+
+	public synchronized void add(double v)
+	{
+		if (v <= boundary)
+		{
+			if (exactSize == exact.length) exact = Arrays.copyOf(exact, exactSize * 2);
+			exact[exactSize++] = v;
+			sorted = false;
+			if (exactSize >= compactAt) compact(Double.POSITIVE_INFINITY);
+		}
+		else addToHistogram(v, 1);
+	}
+
+	public synchronized void addAll(double[] vals)
+	{
+		for (double v : vals)
+		{
+			add(v);
+		}
+	}
+
+	public synchronized void addAll(Iterable<Double> vals)
+	{
+		for (Double v : vals)
+		{
+			add(v);
+		}
+	}
+
+	private void addToHistogram(double v, long cnt)
+	{
+		if (bins == null) bins = new long[BINS];
+		bins[binOf(v)] += cnt;
+		histogramSize += cnt;
+	}
+
+	private void sort()
+	{
+		if (!sorted)
+		{
+			Arrays.sort(exact, 0, exactSize);
+			sorted = true;
+		}
+	}
+
+	/**
+	 * Keeps the lowest scores up to the capacity, and the ones that are equal to the last kept, and
+	 * moves the rest to the histogram. The boundary is not raised above the given limit.
+	 */
+	private void compact(double limit)
+	{
+		sort();
+		int keep = (int) Math.min(capacity, exactSize);
+		double cut = Math.min(limit, keep == 0 ? limit : exact[keep - 1]);
+
+		keep = 0;
+		while (keep < exactSize && exact[keep] <= cut) keep++;
+
+		for (int i = keep; i < exactSize; i++)
+		{
+			addToHistogram(exact[i], 1);
+		}
+		exactSize = keep;
+		if (cut < boundary) boundary = cut;
+		compactAt = 2L * Math.max(capacity, keep);
+
+		if (exact.length > 16 && exact.length > 2 * compactAt)
+		{
+			exact = Arrays.copyOf(exact, (int) Math.min(Integer.MAX_VALUE - 8, compactAt));
+		}
+	}
+
+	/**
+	 * Adds the scores of the other sketch to this one.
+	 */
+	public void merge(NullScoreSketch other)
+	{
+		double[] otherExact;
+		long[] otherBins;
+		double otherBoundary;
+		synchronized (other)
+		{
+			otherExact = Arrays.copyOf(other.exact, other.exactSize);
+			otherBins = other.bins == null ? null : other.bins.clone();
+			otherBoundary = other.boundary;
+		}
+
+		synchronized (this)
+		{
+			// histogram of the other contains scores above its boundary, so our exact scores have to
+			// stay below that
+			if (otherBoundary < boundary) compact(otherBoundary);
+
+			addAll(otherExact);
+			if (otherBins != null)
+			{
+				if (bins == null) bins = new long[BINS];
+				for (int i = 0; i < BINS; i++)
+				{
+					bins[i] += otherBins[i];
+					histogramSize += otherBins[i];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Counts the scores that are less than or equal to each of the given values.
+	 * @param vals values in ascending order
+	 * @param errors if not null, filled with the maximum amount that each count can exceed the
+	 * exact count
+	 * @return the counts
+	 */
+	public synchronized long[] countAtMost(double[] vals, long[] errors)
+	{
+		sort();
+		long[] counts = new long[vals.length];
+
+		int index = 0;
+		int bin = 0;
+		long binCum = 0;
+		for (int i = 0; i < vals.length; i++)
+		{
+			double v = vals[i];
+			while (index < exactSize && exact[index] <= v) index++;
+			counts[i] = index;
+
+			long error = 0;
+			if (v > boundary && bins != null)
+			{
+				int b = binOf(v);
+				while (bin <= b) binCum += bins[bin++];
+				counts[i] += binCum;
+				error = bins[b];
+			}
+			if (errors != null) errors[i] = error;
+		}
+		return counts;
+	}
+
+	/**
+	 * Gets the total number of scores.
+	 */
+	public synchronized long size()
+	{
+		return exactSize + histogramSize;
+	}
+
+	/**
+	 * Gets the number of scores that are kept exactly.
+	 */
+	public synchronized int getExactSize()
+	{
+		return exactSize;
+	}
+
+	/**
+	 * Checks if all scores are kept exactly.
+	 */
+	public synchronized boolean isExact()
+	{
+		return histogramSize == 0;
+	}
+
+	public synchronized void clear()
+	{
+		exact = new double[16];
+		exactSize = 0;
+		sorted = true;
+		compactAt = 2L * capacity;
+		boundary = Double.POSITIVE_INFINITY;
+		bins = null;
+		histogramSize = 0;
+	}
+
+	/**
+	 * Estimates the memory used by the sketch.
+	 */
+	public synchronized long getMemoryBytes()
+	{
+		return 8L * exact.length + (bins == null ? 0 : 8L * bins.length);
+	}
+
+	public synchronized String getReport()
+	{
+		if (isExact())
+		{
+			return String.format("Null scores: %d, all exact, %.1f MB", size(),
+				getMemoryBytes() / 1E6);
+		}
+		return String.format("Null scores: %d, lowest %d exact (up to %g), %.1f MB", size(),
+			exactSize, boundary, getMemoryBytes() / 1E6);
+	}
+}
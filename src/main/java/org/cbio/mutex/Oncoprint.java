@@ -162,26 +162,18 @@ public class Oncoprint
 		}
 	}
 
-	private static int[][] readFromMatrixFile(String[] genes, String file) throws FileNotFoundException
+	private static int[][] readFromMatrixFile(String[] genes, String file) throws IOException
 	{
-		Set<String> set = new HashSet<>(Arrays.asList(genes));
-		int[][] x = new int[genes.length][];
-		Scanner sc = new Scanner(new File(file));
-		sc.nextLine();
+		// only the rows of the genes are read, using the row index of the file
+		MatrixParser parser = new MatrixParser(file);
+		parser.setSymbols(new HashSet<>(Arrays.asList(genes)));
+		Map<String, GeneAlt> map = parser.parse();
 
-		while (sc.hasNextLine())
+		int[][] x = new int[genes.length][];
+		for (int i = 0; i < genes.length; i++)
 		{
-			String line = sc.nextLine();
-			String sym = line.substring(0, line.indexOf("\t"));
-			if (set.contains(sym))
-			{
-				int[] alts = convert(line.substring(line.indexOf("\t") + 1));
-
-				for (int i = 0; i < genes.length; i++)
-				{
-					if (genes[i].equals(sym)) x[i] = alts;
-				}
-			}
+			GeneAlt gene = map.get(genes[i]);
+			if (gene != null) x[i] = gene.alterations;
 		}
 		return x;
 	}
@@ -295,17 +287,6 @@ public class Oncoprint
 		return c;
 	}
 
-	private static int[] convert(String altStr)
-	{
-		String[] token = altStr.split("\t");
-		int[] alts = new int[token.length];
-		for (int i = 0; i < alts.length; i++)
-		{
-			alts[i] = Integer.parseInt(token[i]);
-		}
-		return alts;
-	}
-
 	public static final String header = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n" +
 		"<svg\n" +
 		"   xmlns:dc=\"http://purl.org/dc/elements/1.1/\"\n" +
@@ -0,0 +1,162 @@
+package org.cbio.mutex;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of mutual exclusivity p-values, keyed by the counts of the test. The same counts
+ * repeat a lot during a search, because alteration counts of genes do not change with shuffling.
+ *
+ * The cache is a direct-mapped table. Each key has one slot, and a new entry evicts the older entry
+ * in its slot. Entries are immutable, so threads can share the cache without locking. Races can
+ * only cause a missed entry, never a wrong value.
+ *
+ * @author Ozgun Babur
+ */
+public class PvalCache
+{
+	/**
+	 * Counts larger than this cannot be packed into a key.
+	 */
+	public static final int MAX_COUNT = 0xFFFF;
+
+	/**
+	 * Largest capacity of the table. Larger capacities are reduced to this.
+	 */
+	public static final int MAX_CAPACITY = 1 << 30;
+
+	private final Entry[] table;
+	private final int shift;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * Total time spent for calculating the missed p-values.
+	 */
+	private final LongAdder missNanos = new LongAdder();
+
+	/**
+	 * Constructor with the capacity.
+	 * @param capacity number of entries, rounded up to a power of 2, at most MAX_CAPACITY
+	 */
+	public PvalCache(int capacity)
+	{
+		if (capacity <= 0) throw new IllegalArgumentException("Cache capacity should be positive: " +
+			capacity);
+
+		capacity = Math.min(capacity, MAX_CAPACITY);
+		int bits = 32 - Integer.numberOfLeadingZeros(Math.max(1, capacity - 1));
+		this.table = new Entry[1 << bits];
+		this.shift = 64 - bits;
+	}
+
+	/**
+	 * Packs the counts of a test into a key.
+	 * @return the key, or -1 if a count is too large to pack
+	 */
+	public static long key(int n, int a, int b, int k)
+	{
+		if (n > MAX_COUNT) return -1;
+		return ((long) n << 48) | ((long) a << 32) | ((long) b << 16) | k;
+	}
+
+	private int slot(long key)
+	{
+		return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+	}
+
+	/**
+	 * Gets the cached p-value.
+	 * @return the p-value, or NaN if not cached
+	 */
+	public double get(long key)
+	{
+		Entry e = table[slot(key)];
+		if (e != null && e.key == key)
+		{
+			hits.increment();
+			return e.pval;
+		}
+		misses.increment();
+		return Double.NaN;
+	}
+
+	/**
+	 * Puts a calculated p-value to the cache.
+	 * @param key key of the counts
+	 * @param pval the p-value
+	 * @param nanos time spent for the calculation
+	 */
+	public void put(long key, double pval, long nanos)
+	{
+		table[slot(key)] = new Entry(key, pval);
+		missNanos.add(nanos);
+	}
+
+	public long getHits()
+	{
+		return hits.sum();
+	}
+
+	public long getMisses()
+	{
+		return misses.sum();
+	}
+
+	/**
+	 * Gets the ratio of queries that are answered from the cache.
+	 */
+	public double getHitRate()
+	{
+		long h = getHits();
+		long total = h + getMisses();
+		return total == 0 ? 0 : h / (double) total;
+	}
+
+	/**
+	 * Estimates the time saved by the cache, assuming each hit would take the average time of a
+	 * miss.
+	 * @return saved time in milliseconds
+	 */
+	public double getSavedMillis()
+	{
+		long m = getMisses();
+		return m == 0 ? 0 : getHits() * (missNanos.sum() / (double) m) / 1E6;
+	}
+
+	/**
+	 * Clears the entries and the counters.
+	 */
+	public void clear()
+	{
+		for (int i = 0; i < table.length; i++)
+		{
+			table[i] = null;
+		}
+		hits.reset();
+		misses.reset();
+		missNanos.reset();
+	}
+
+	public String getReport()
+	{
+		return String.format("P-value cache: hit rate = %.1f%% (%d hits, %d misses), " +
+			"estimated time saved = %.0f ms", getHitRate() * 100, getHits(), getMisses(),
+			getSavedMillis());
+	}
+
+	/**
+	 * An immutable cache entry.
+	 */
+	private static final class Entry
+	{
+		final long key;
+		final double pval;
+
+		Entry(long key, double pval)
+		{
+			this.key = key;
+			this.pval = pval;
+		}
+	}
+}
@@ -0,0 +1,221 @@
+package org.cbio.mutex;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads and writes the final scores of random runs.
+ *
+ * The binary format is a 32 byte header followed by the scores as little-endian doubles. Header has
+ * the magic number, format version, number of random runs in the file, run id, fingerprint of the
+ * parameters that generated the scores, and the number of scores. A file can contain a single run,
+ * or many runs that are compacted into one sorted array.
+ *
+ * Text files with one score per line are also read, each as a single run. Both formats can be
+ * gzipped, with the ".gz" extension added to the file name.
+ *
+ * @author Ozgun Babur
+ */
+public class RandScoreFile
+{
+	public static final String BINARY_EXTENSION = ".bin";
+	public static final String TEXT_EXTENSION = ".txt";
+
+	private static final int MAGIC = 0x4D585253; // MXRS
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 32;
+
+	/**
+	 * Number of random runs in the file.
+	 */
+	public final int runs;
+
+	/**
+	 * Identifier of the run, or of the compaction.
+	 */
+	public final long runId;
+
+	/**
+	 * Fingerprint of the analysis parameters. Zero if not known.
+	 */
+	public final long fingerprint;
+
+	/**
+	 * The scores.
+	 */
+	public final double[] scores;
+
+	public RandScoreFile(int runs, long runId, long fingerprint, double[] scores)
+	{
+		this.runs = runs;
+		this.runId = runId;
+		this.fingerprint = fingerprint;
+		this.scores = scores;
+	}
+
+	/**
+	 * Checks if the file name is of a random scores file.
+	 */
+	public static boolean isScoreFile(File file)
+	{
+		String name = IOUtil.stripGzip(file.getName());
+		return file.isFile() && (name.endsWith(TEXT_EXTENSION) || name.endsWith(BINARY_EXTENSION));
+	}
+
+	private static boolean isBinary(File file)
+	{
+		return IOUtil.stripGzip(file.getName()).endsWith(BINARY_EXTENSION);
+	}
+
+	/**
+	 * Gets the number of random runs in the file by reading only its header.
+	 */
+	public static int countRuns(File file) throws IOException
+	{
+		if (!isBinary(file)) return 1;
+
+		try (DataInputStream in = new DataInputStream(IOUtil.newInputStream(file.getPath())))
+		{
+			readHeader(in);
+			return in.readInt();
+		}
+	}
+
+	/**
+	 * Gets the fingerprint of the parameters of the file by reading only its header. Text files
+	 * do not have a fingerprint, which is zero.
+	 */
+	public static long readFingerprint(File file) throws IOException
+	{
+		if (!isBinary(file)) return 0;
+
+		try (DataInputStream in = new DataInputStream(IOUtil.newInputStream(file.getPath())))
+		{
+			readHeader(in);
+			in.readInt();
+			in.readLong();
+			return in.readLong();
+		}
+	}
+
+	private static void readHeader(DataInputStream in) throws IOException
+	{
+		if (in.readInt() != MAGIC) throw new IOException("Not a random scores file.");
+		int version = in.readInt();
+		if (version != VERSION) throw new IOException("Unsupported random scores version: " + version);
+	}
+
+	/**
+	 * Reads a binary or text file. Uncompressed binary files are memory-mapped.
+	 */
+	public static RandScoreFile read(File file) throws IOException
+	{
+		if (!isBinary(file)) return readText(file);
+		return IOUtil.isGzipped(file.getName()) ? readBinaryStream(file) : readBinary(file);
+	}
+
+	private static RandScoreFile readBinary(File file) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			// header is big-endian, as written by DataOutputStream
+			buf.order(ByteOrder.BIG_ENDIAN);
+			if (buf.getInt() != MAGIC) throw new IOException("Not a random scores file: " + file);
+			int version = buf.getInt();
+			if (version != VERSION)
+			{
+				throw new IOException("Unsupported random scores version " + version + ": " + file);
+			}
+			int runs = buf.getInt();
+			long runId = buf.getLong();
+			long fingerprint = buf.getLong();
+			int count = buf.getInt();
+
+			if (channel.size() < HEADER_SIZE + 8L * count)
+			{
+				throw new IOException("Truncated random scores file: " + file);
+			}
+
+			double[] scores = new double[count];
+			buf.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().get(scores);
+			return new RandScoreFile(runs, runId, fingerprint, scores);
+		}
+	}
+
+	private static RandScoreFile readBinaryStream(File file) throws IOException
+	{
+		try (DataInputStream in = new DataInputStream(IOUtil.newInputStream(file.getPath())))
+		{
+			readHeader(in);
+			int runs = in.readInt();
+			long runId = in.readLong();
+			long fingerprint = in.readLong();
+			int count = in.readInt();
+
+			double[] scores = new double[count];
+			byte[] bytes = new byte[8 * 4096];
+			for (int i = 0; i < count; i += 4096)
+			{
+				int n = Math.min(4096, count - i);
+				try
+				{
+					in.readFully(bytes, 0, 8 * n);
+				}
+				catch (EOFException e)
+				{
+					throw new IOException("Truncated random scores file: " + file);
+				}
+				ByteBuffer.wrap(bytes, 0, 8 * n).order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer()
+					.get(scores, i, n);
+			}
+			return new RandScoreFile(runs, runId, fingerprint, scores);
+		}
+	}
+
+	private static RandScoreFile readText(File file) throws IOException
+	{
+		double[] scores = new double[1024];
+		int cnt = 0;
+		try (BufferedReader reader = IOUtil.newReader(file.getPath()))
+		{
+			for (String line = reader.readLine(); line != null; line = reader.readLine())
+			{
+				if (line.isEmpty()) continue;
+				if (cnt == scores.length) scores = Arrays.copyOf(scores, cnt * 2);
+				scores[cnt++] = Double.parseDouble(line);
+			}
+		}
+		return new RandScoreFile(1, 0, 0, Arrays.copyOf(scores, cnt));
+	}
+
+	/**
+	 * Writes the scores in binary format, gzipped if the file name ends with ".gz".
+	 */
+	public void write(File file) throws IOException
+	{
+		try (DataOutputStream out = new DataOutputStream(IOUtil.newOutputStream(file.getPath())))
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(runs);
+			out.writeLong(runId);
+			out.writeLong(fingerprint);
+			out.writeInt(scores.length);
+
+			ByteBuffer buf = ByteBuffer.allocate(8 * 4096).order(ByteOrder.LITTLE_ENDIAN);
+			for (int i = 0; i < scores.length; i += 4096)
+			{
+				buf.clear();
+				buf.asDoubleBuffer().put(scores, i, Math.min(4096, scores.length - i));
+				out.write(buf.array(), 0, 8 * Math.min(4096, scores.length - i));
+			}
+		}
+	}
+}
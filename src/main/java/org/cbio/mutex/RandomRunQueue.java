@@ -0,0 +1,462 @@
+package org.cbio.mutex;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Distributes second-level random runs between processes that share the randscores directory.
+ *
+ * The quota of random runs is split into slots. A worker claims a free slot by creating its claim
+ * file, runs the iteration, writes the result to the file of the slot, and deletes the claim. The
+ * directory is scanned and modified only while holding a lock on a lock file, so that claims are
+ * atomic across processes. Workers refresh the modification time of their claim files regularly.
+ * A claim that is not refreshed within the timeout belongs to a crashed worker, and its slot can be
+ * claimed again.
+ *
+ * Random score files that are not written in slots, such as the ones from older versions or the
+ * compacted ones, are counted towards the quota with the number of runs they contain.
+ *
+ * Score files that are generated with different analysis parameters are renamed with the ".stale"
+ * extension when the queue is created, so that they neither fill the quota nor are loaded.
+ *
+ * @author Ozgun Babur
+ */
+public class RandomRunQueue
+{
+	private static final String SLOT_PREFIX = "randfile-slot-";
+	private static final String COMPACT_PREFIX = "randfile-compact-";
+	private static final String LOCK_FILE = ".lock";
+	private static final String STALE_EXTENSION = ".stale";
+
+	/**
+	 * File locks are held by the whole process, so threads of the same process also need to
+	 * exclude each other.
+	 */
+	private static final Object PROCESS_LOCK = new Object();
+
+	private final File dir;
+
+	/**
+	 * Total number of random runs needed.
+	 */
+	private final int quota;
+
+	/**
+	 * A claim is considered abandoned if it is not refreshed in this much time.
+	 */
+	private final long timeoutMillis;
+
+	/**
+	 * Fingerprint of the parameters of the analysis, written to the result files.
+	 */
+	private final long fingerprint;
+
+	/**
+	 * Claim files of this worker, refreshed periodically.
+	 */
+	private final Set<File> claims = Collections.synchronizedSet(new HashSet<>());
+
+	private ScheduledExecutorService heartbeat;
+
+	/**
+	 * Whether to gzip the result files.
+	 */
+	private boolean compress;
+
+	/**
+	 * Constructor.
+	 * @param dir the randscores directory
+	 * @param quota total number of random runs needed
+	 * @param timeoutMillis time after which a claim that is not refreshed is abandoned
+	 * @param fingerprint fingerprint of the analysis parameters, or zero to accept all score files
+	 */
+	public RandomRunQueue(String dir, int quota, long timeoutMillis, long fingerprint)
+		throws IOException
+	{
+		this.dir = new File(dir);
+		this.quota = quota;
+		this.timeoutMillis = timeoutMillis;
+		this.fingerprint = fingerprint;
+		this.dir.mkdirs();
+
+		if (fingerprint != 0)
+		{
+			locked(() ->
+			{
+				setAsideStale();
+				return null;
+			});
+		}
+	}
+
+	/**
+	 * Renames the score files of other analysis parameters, so that they are not counted as
+	 * done.
+	 */
+	private void setAsideStale() throws IOException
+	{
+		File[] files = dir.listFiles();
+		if (files == null) return;
+
+		for (File file : files)
+		{
+			if (!RandScoreFile.isScoreFile(file)) continue;
+
+			long fp = RandScoreFile.readFingerprint(file);
+			if (fp != 0 && fp != fingerprint)
+			{
+				File stale = new File(dir, file.getName() + STALE_EXTENSION);
+				System.err.println("Random scores of different parameters are renamed to " + stale);
+				Files.move(file.toPath(), stale.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+	}
+
+	/**
+	 * Sets whether to gzip the result files of this worker.
+	 */
+	public void setCompress(boolean compress)
+	{
+		this.compress = compress;
+	}
+
+	private File getResultFile(int slot)
+	{
+		return new File(dir, SLOT_PREFIX + slot + RandScoreFile.BINARY_EXTENSION +
+			(compress ? IOUtil.GZIP_EXTENSION : ""));
+	}
+
+	/**
+	 * Checks if the slot has a result, also in the text format of the previous versions, or
+	 * compressed by another worker.
+	 */
+	private boolean isDone(int slot)
+	{
+		String name = SLOT_PREFIX + slot;
+		return new File(dir, name + RandScoreFile.BINARY_EXTENSION).exists() ||
+			new File(dir, name + RandScoreFile.BINARY_EXTENSION + IOUtil.GZIP_EXTENSION).exists() ||
+			new File(dir, name + RandScoreFile.TEXT_EXTENSION).exists();
+	}
+
+	private File getClaimFile(int slot)
+	{
+		return new File(dir, SLOT_PREFIX + slot + ".claim");
+	}
+
+	/**
+	 * Runs the given action while holding the directory lock.
+	 */
+	private <T> T locked(IOCallable<T> action) throws IOException
+	{
+		synchronized (PROCESS_LOCK)
+		{
+			try (FileChannel channel = FileChannel.open(new File(dir, LOCK_FILE).toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+				FileLock lock = channel.lock())
+			{
+				return action.call();
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of slots that are available after the result files that are not in slots.
+	 */
+	private int getSlotCount() throws IOException
+	{
+		int legacy = 0;
+		File[] files = dir.listFiles();
+		if (files != null)
+		{
+			for (File file : files)
+			{
+				if (RandScoreFile.isScoreFile(file) && !file.getName().startsWith(SLOT_PREFIX))
+				{
+					legacy += RandScoreFile.countRuns(file);
+				}
+			}
+		}
+		return Math.max(0, quota - legacy);
+	}
+
+	private boolean isClaimAlive(File claim)
+	{
+		return claim.exists() && System.currentTimeMillis() - claim.lastModified() < timeoutMillis;
+	}
+
+	/**
+	 * Claims a free slot. Slots whose claims have timed out are free.
+	 * @return the claimed slot, or -1 if each slot is either done or claimed by a live worker
+	 */
+	public int claim() throws IOException
+	{
+		return locked(() ->
+		{
+			int slots = getSlotCount();
+			for (int i = 0; i < slots; i++)
+			{
+				if (isDone(i)) continue;
+
+				File claim = getClaimFile(i);
+				if (isClaimAlive(claim)) continue;
+
+				if (claim.exists())
+				{
+					System.out.println("Reclaiming abandoned random run slot " + i);
+				}
+
+				try (Writer writer = new FileWriter(claim))
+				{
+					writer.write(getWorkerName() + "\n");
+				}
+				claims.add(claim);
+				startHeartbeat();
+				return i;
+			}
+			return -1;
+		});
+	}
+
+	/**
+	 * Writes the scores of a completed run to the file of its slot, and releases the claim.
+	 */
+	public void complete(int slot, List<Double> scores) throws IOException
+	{
+		double[] vals = new double[scores.size()];
+		for (int i = 0; i < vals.length; i++)
+		{
+			vals[i] = scores.get(i);
+		}
+		Arrays.sort(vals);
+
+		// write to a temporary file first, so that readers never see a partial file
+		File tmp = new File(dir, SLOT_PREFIX + slot + "-" + getWorkerName() + ".tmp" +
+			(compress ? IOUtil.GZIP_EXTENSION : ""));
+		new RandScoreFile(1, new Random().nextLong(), fingerprint, vals).write(tmp);
+
+		locked(() ->
+		{
+			File result = getResultFile(slot);
+			if (isDone(slot))
+			{
+				// another worker reclaimed and finished the slot, which means our claim timed out
+				Files.delete(tmp.toPath());
+			}
+			else Files.move(tmp.toPath(), result.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			release(slot);
+			return null;
+		});
+	}
+
+	/**
+	 * Releases the claim of a slot without a result, so that another worker can take it.
+	 */
+	public void abandon(int slot) throws IOException
+	{
+		locked(() ->
+		{
+			release(slot);
+			return null;
+		});
+	}
+
+	private void release(int slot)
+	{
+		File claim = getClaimFile(slot);
+		claims.remove(claim);
+		claim.delete();
+	}
+
+	/**
+	 * Checks if all slots are done.
+	 */
+	public boolean isFilled() throws IOException
+	{
+		return locked(() ->
+		{
+			int slots = getSlotCount();
+			for (int i = 0; i < slots; i++)
+			{
+				if (!isDone(i)) return false;
+			}
+			return true;
+		});
+	}
+
+	/**
+	 * Waits until all slots are done. Slots of crashed workers are claimed and run with the given
+	 * runner.
+	 * @param runner runs the iteration of a slot and returns its scores
+	 */
+	public void waitUntilFilled(SlotRunner runner) throws IOException
+	{
+		while (!isFilled())
+		{
+			int slot = claim();
+			if (slot >= 0) run(slot, runner);
+			else
+			{
+				try
+				{
+					Thread.sleep(Math.min(10000, Math.max(100, timeoutMillis / 10)));
+				}
+				catch (InterruptedException e)
+				{
+					throw new InterruptedIOException("Interrupted while waiting for random runs.");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs an iteration for the claimed slot, and completes it. The claim is released if the run
+	 * fails.
+	 */
+	public void run(int slot, SlotRunner runner) throws IOException
+	{
+		boolean done = false;
+		try
+		{
+			complete(slot, runner.run(slot));
+			done = true;
+		}
+		finally
+		{
+			if (!done) abandon(slot);
+		}
+	}
+
+	/**
+	 * Stops refreshing the claims. Should be called when the worker is done.
+	 */
+	public synchronized void close()
+	{
+		if (heartbeat != null)
+		{
+			heartbeat.shutdownNow();
+			heartbeat = null;
+		}
+	}
+
+	private synchronized void startHeartbeat()
+	{
+		if (heartbeat != null) return;
+
+		heartbeat = Executors.newSingleThreadScheduledExecutor(r ->
+		{
+			Thread t = new Thread(r, "random-run-heartbeat");
+			t.setDaemon(true);
+			return t;
+		});
+
+		long period = Math.max(1, timeoutMillis / 4);
+		heartbeat.scheduleAtFixedRate(() ->
+		{
+			long now = System.currentTimeMillis();
+			synchronized (claims)
+			{
+				for (File claim : claims)
+				{
+					claim.setLastModified(now);
+				}
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Merges all random score files in the given directory into one sorted binary file. Files that
+	 * are generated with different parameters cannot be merged. Compaction is not done while there
+	 * are claimed slots.
+	 * @param dir the randscores directory
+	 * @return the compacted file, or null if compaction is not possible
+	 */
+	public static File compact(String dir) throws IOException
+	{
+		RandomRunQueue queue = new RandomRunQueue(dir, 0, Long.MAX_VALUE, 0);
+		return queue.locked(() ->
+		{
+			File[] files = queue.dir.listFiles();
+			if (files == null) return null;
+
+			List<File> inputs = new ArrayList<>();
+			for (File file : files)
+			{
+				if (file.getName().endsWith(".claim"))
+				{
+					System.err.println("Cannot compact while random runs are in progress. " +
+						"Delete the claim files of stopped processes first: " + file);
+					return null;
+				}
+				if (RandScoreFile.isScoreFile(file)) inputs.add(file);
+			}
+			if (inputs.size() < 2) return null;
+
+			int runs = 0;
+			long fp = 0;
+			double[] merged = new double[0];
+			for (File file : inputs)
+			{
+				RandScoreFile rsf = RandScoreFile.read(file);
+				if (rsf.fingerprint != 0)
+				{
+					if (fp != 0 && fp != rsf.fingerprint)
+					{
+						System.err.println("Cannot compact random scores of different analysis " +
+							"parameters: " + file);
+						return null;
+					}
+					fp = rsf.fingerprint;
+				}
+				runs += rsf.runs;
+
+				int old = merged.length;
+				merged = Arrays.copyOf(merged, old + rsf.scores.length);
+				System.arraycopy(rsf.scores, 0, merged, old, rsf.scores.length);
+			}
+			Arrays.sort(merged);
+
+			long id = new Random().nextLong();
+			File tmp = new File(queue.dir, COMPACT_PREFIX + Long.toHexString(id) + ".tmp");
+			File result = new File(queue.dir, COMPACT_PREFIX + Long.toHexString(id) +
+				RandScoreFile.BINARY_EXTENSION);
+			new RandScoreFile(runs, id, fp, merged).write(tmp);
+			Files.move(tmp.toPath(), result.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+			for (File file : inputs)
+			{
+				Files.delete(file.toPath());
+			}
+			return result;
+		});
+	}
+
+	private static String getWorkerName()
+	{
+		return ManagementFactory.getRuntimeMXBean().getName() + "-" +
+			Thread.currentThread().getId();
+	}
+
+	/**
+	 * An action that can throw IOException.
+	 */
+	public interface IOCallable<T>
+	{
+		T call() throws IOException;
+	}
+
+	/**
+	 * Runs the iteration of a slot. The slot can be used as the index of the run, for instance to
+	 * derive its random seed.
+	 */
+	public interface SlotRunner
+	{
+		List<Double> run(int slot) throws IOException;
+	}
+}
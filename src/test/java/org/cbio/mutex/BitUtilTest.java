@@ -0,0 +1,109 @@
+package org.cbio.mutex;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the bitset kernels against loops over boolean arrays. Sizes include partial last words.
+ *
+ * @author Ozgun Babur
+ */
+public class BitUtilTest
+{
+	private static final int[] SIZES = {1, 63, 64, 65, 150, 256};
+
+	static boolean[] randomChanges(Random r, int size, double ratio)
+	{
+		boolean[] b = new boolean[size];
+		for (int i = 0; i < size; i++)
+		{
+			b[i] = r.nextDouble() < ratio;
+		}
+		return b;
+	}
+
+	@Test
+	public void packAndUnpack()
+	{
+		Random r = new Random(1);
+		for (int size : SIZES)
+		{
+			boolean[] b = randomChanges(r, size, 0.3);
+			long[] bits = BitUtil.pack(b);
+
+			assertEquals(BitUtil.wordCount(size), bits.length);
+			assertArrayEquals(b, BitUtil.unpack(bits, size));
+			for (int i = 0; i < size; i++)
+			{
+				assertEquals(b[i], BitUtil.get(bits, i));
+			}
+		}
+	}
+
+	@Test
+	public void countsMatchBooleanLoops()
+	{
+		Random r = new Random(2);
+		for (int size : SIZES)
+		{
+			for (int rep = 0; rep < 20; rep++)
+			{
+				boolean[] a = randomChanges(r, size, 0.2);
+				boolean[] b = randomChanges(r, size, 0.4);
+				boolean[] c = randomChanges(r, size, 0.5);
+
+				int cnt = 0, and = 0, or = 0, orAnd = 0;
+				boolean andNot = false;
+				for (int i = 0; i < size; i++)
+				{
+					if (a[i]) cnt++;
+					if (a[i] && b[i]) and++;
+					if (a[i] || b[i]) or++;
+					if (a[i] || (b[i] && c[i])) orAnd++;
+					if (a[i] && !b[i]) andNot = true;
+				}
+
+				long[] pa = BitUtil.pack(a);
+				long[] pb = BitUtil.pack(b);
+				long[] pc = BitUtil.pack(c);
+
+				assertEquals(cnt, BitUtil.count(pa));
+				assertEquals(and, BitUtil.countAnd(pa, pb));
+				assertEquals(or, BitUtil.countOr(pa, pb));
+				assertEquals(orAnd, BitUtil.countOrAnd(pa, pb, pc));
+				assertEquals(andNot, BitUtil.hasAndNot(pa, pb));
+				assertEquals(and, BitUtil.count(BitUtil.and(pa, pb)));
+
+				long[] merged = pa.clone();
+				BitUtil.or(merged, pb);
+				assertEquals(or, BitUtil.count(merged));
+
+				merged = pa.clone();
+				BitUtil.orAnd(merged, pb, pc);
+				assertEquals(orAnd, BitUtil.count(merged));
+			}
+		}
+	}
+
+	@Test
+	public void swapExchangesBits()
+	{
+		Random r = new Random(3);
+		boolean[] b = randomChanges(r, 150, 0.5);
+		long[] bits = BitUtil.pack(b);
+
+		for (int rep = 0; rep < 1000; rep++)
+		{
+			int i = r.nextInt(b.length);
+			int j = r.nextInt(b.length);
+			boolean t = b[i];
+			b[i] = b[j];
+			b[j] = t;
+			BitUtil.swap(bits, i, j);
+		}
+		assertArrayEquals(b, BitUtil.unpack(bits, b.length));
+	}
+}
@@ -0,0 +1,103 @@
+package org.cbio.mutex;
+
+import org.junit.Test;
+import org.panda.utility.statistics.FDR;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the FDR sweep against the selections of FDR.select and against FDRs counted directly.
+ *
+ * @author Ozgun Babur
+ */
+public class FDRSweepTest
+{
+	private static final int RUNS = 20;
+
+	private Map<String, Double> results = new HashMap<>();
+	private List<Double> nullScores = new ArrayList<>();
+
+	/**
+	 * Scores are on a grid, so that null scores can be equal to result scores. Result scores are
+	 * distinct, so that their order has no ties.
+	 */
+	private void generate(long seed)
+	{
+		Random r = new Random(seed);
+		Set<Integer> used = new HashSet<>();
+		while (results.size() < 300)
+		{
+			int v = (int) (Math.pow(r.nextDouble(), 3) * 100000);
+			if (used.add(v)) results.put("R" + v, v / 100000D);
+		}
+		for (int i = 0; i < RUNS * 300; i++)
+		{
+			nullScores.add(r.nextInt(100000) / 100000D);
+		}
+	}
+
+	private FDRSweep createSweep()
+	{
+		NullScoreSketch sketch = new NullScoreSketch(0);
+		sketch.addAll(nullScores);
+		return new FDRSweep(results, sketch, RUNS);
+	}
+
+	@Test
+	public void selectionsMatchFDRSelect()
+	{
+		generate(9);
+		FDRSweep sweep = createSweep();
+
+		for (int i = 1; i <= FDRSweep.FDR_STEP_COUNT; i++)
+		{
+			double fdr = i / (double) FDRSweep.FDR_STEPS;
+			List<String> exp = FDR.select(results, fdr, new ArrayList<>(nullScores), RUNS);
+			assertEquals(exp, sweep.select(fdr));
+		}
+	}
+
+	@Test
+	public void fdrsMatchDirectCounts()
+	{
+		generate(10);
+		FDRSweep sweep = createSweep();
+
+		List<String> keys = sweep.getSortedKeys();
+		for (int i = 0; i < keys.size(); i++)
+		{
+			double score = results.get(keys.get(i));
+			assertEquals(score, sweep.getScore(i), 0);
+			if (i > 0) assertTrue(sweep.getScore(i - 1) < score);
+
+			int cnt = 0;
+			for (double v : nullScores)
+			{
+				if (v <= score) cnt++;
+			}
+			assertEquals((cnt / (double) RUNS) / (i + 1), sweep.getFDR(i), 1E-15);
+			assertEquals(0, sweep.getFDRError(i), 0);
+		}
+	}
+
+	@Test
+	public void selectionSizesMatchSingleSelections()
+	{
+		generate(11);
+		FDRSweep sweep = createSweep();
+
+		int[] sizes = sweep.getSelectionSizes(FDRSweep.FDR_STEPS, FDRSweep.FDR_STEP_COUNT);
+		for (int i = 1; i <= FDRSweep.FDR_STEP_COUNT; i++)
+		{
+			assertEquals(sweep.getSelectionSize(i / (double) FDRSweep.FDR_STEPS), sizes[i - 1]);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void zeroRunsIsRejected()
+	{
+		new FDRSweep(Collections.singletonMap("R", 0.1), new NullScoreSketch(0), 0);
+	}
+}
@@ -0,0 +1,204 @@
+package org.cbio.mutex;
+
+import org.panda.utility.statistics.FishersExactTest;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.util.Random;
+
+/**
+ * Compares FastFisher with the library implementation of Fisher's exact test, in terms of both the
+ * agreement of the p-values and the running time. P-values are also checked against exact values
+ * calculated with big integers.
+ *
+ * @author Ozgun Babur
+ */
+public class FastFisherBenchmark
+{
+	/**
+	 * Maximum relative difference allowed between the two implementations.
+	 */
+	static final double TOLERANCE = 1E-12;
+
+	int n;
+	int[] a, b, k;
+
+	public FastFisherBenchmark(int n, int size, long seed)
+	{
+		this.n = n;
+		a = new int[size];
+		b = new int[size];
+		k = new int[size];
+
+		Random r = new Random(seed);
+		for (int i = 0; i < size; i++)
+		{
+			a[i] = 1 + r.nextInt(n / 3);
+			b[i] = 1 + r.nextInt(n / 2);
+			int min = Math.max(0, a[i] + b[i] - n);
+			int max = Math.min(a[i], b[i]);
+			k[i] = min + r.nextInt(max - min + 1);
+		}
+	}
+
+	/**
+	 * Gets the maximum relative difference of the p-values to the library.
+	 */
+	public double compareToLibrary()
+	{
+		FastFisher ff = FastFisher.get(n);
+		double maxDif = 0;
+
+		for (int i = 0; i < a.length; i++)
+		{
+			double exp = FishersExactTest.calcDeficiencyPval(n, a[i], b[i], k[i]);
+			double act = ff.calcDeficiencyPval(a[i], b[i], k[i]);
+			maxDif = Math.max(maxDif, relativeDifference(exp, act));
+		}
+		return maxDif;
+	}
+
+	/**
+	 * Checks that the p-values of the first given number of cases are within the tolerance of
+	 * their exact values.
+	 * @return maximum relative difference
+	 */
+	public double checkExact(int cases)
+	{
+		FastFisher ff = FastFisher.get(n);
+		double maxDif = 0;
+
+		for (int i = 0; i < cases; i++)
+		{
+			double exp = calcExactPval(n, a[i], b[i], k[i]);
+			double act = ff.calcDeficiencyPval(a[i], b[i], k[i]);
+			double dif = relativeDifference(exp, act);
+
+			if (dif > TOLERANCE)
+			{
+				throw new AssertionError("n = " + n + ", a = " + a[i] + ", b = " + b[i] +
+					", k = " + k[i] + ", expected " + exp + ", found " + act);
+			}
+			maxDif = Math.max(maxDif, dif);
+		}
+		return maxDif;
+	}
+
+	/**
+	 * Relative difference of the values, where subnormal values are compared by their difference.
+	 */
+	private static double relativeDifference(double exp, double act)
+	{
+		return Math.abs(act - exp) / Math.max(exp, Double.MIN_NORMAL);
+	}
+
+	/**
+	 * Calculates the lower tail of the hypergeometric distribution without rounding, except the
+	 * final division.
+	 */
+	static double calcExactPval(int n, int a, int b, int k)
+	{
+		int min = Math.max(0, a + b - n);
+
+		// C(a, i) * C(n - a, b - i) for i = min, iterated up to k
+		BigInteger c1 = binomial(a, min);
+		BigInteger c2 = binomial(n - a, b - min);
+		BigInteger sum = BigInteger.ZERO;
+		for (int i = min; i <= k; i++)
+		{
+			sum = sum.add(c1.multiply(c2));
+			c1 = c1.multiply(BigInteger.valueOf(a - i)).divide(BigInteger.valueOf(i + 1));
+			if (b - i > 0)
+			{
+				c2 = c2.multiply(BigInteger.valueOf(b - i)).divide(BigInteger.valueOf(n - a - b + i + 1));
+			}
+		}
+		return new BigDecimal(sum).divide(new BigDecimal(binomial(n, b)), MathContext.DECIMAL64)
+			.doubleValue();
+	}
+
+	private static BigInteger binomial(int n, int k)
+	{
+		BigInteger c = BigInteger.ONE;
+		for (int i = 0; i < k; i++)
+		{
+			c = c.multiply(BigInteger.valueOf(n - i)).divide(BigInteger.valueOf(i + 1));
+		}
+		return c;
+	}
+
+	public double runLibrary()
+	{
+		double sum = 0;
+		for (int i = 0; i < a.length; i++)
+		{
+			sum += FishersExactTest.calcDeficiencyPval(n, a[i], b[i], k[i]);
+		}
+		return sum;
+	}
+
+	public double runFast()
+	{
+		FastFisher ff = FastFisher.get(n);
+		double sum = 0;
+		for (int i = 0; i < a.length; i++)
+		{
+			sum += ff.calcDeficiencyPval(a[i], b[i], k[i]);
+		}
+		return sum;
+	}
+
+	public double runFastBatch(double[] pvals)
+	{
+		FastFisher.get(n).calcDeficiencyPvals(a, b, k, a.length, pvals);
+		double sum = 0;
+		for (double pval : pvals)
+		{
+			sum += pval;
+		}
+		return sum;
+	}
+
+	/**
+	 * Measures the average time of one p-value calculation in nanoseconds, after warm-up rounds.
+	 */
+	private static double time(Runnable run, int calls)
+	{
+		for (int i = 0; i < 5; i++)
+		{
+			run.run();
+		}
+
+		int rounds = 10;
+		long start = System.nanoTime();
+		for (int i = 0; i < rounds; i++)
+		{
+			run.run();
+		}
+		return (System.nanoTime() - start) / (double) (rounds * calls);
+	}
+
+	public static void main(String[] args)
+	{
+		int size = 100000;
+		double[] sink = new double[1];
+
+		for (int n : new int[]{100, 500, 1000, 5000})
+		{
+			FastFisherBenchmark bm = new FastFisherBenchmark(n, size, n);
+			double exactDif = bm.checkExact(1000);
+			double libDif = bm.compareToLibrary();
+
+			double[] pvals = new double[size];
+			double lib = time(() -> sink[0] += bm.runLibrary(), size);
+			double fast = time(() -> sink[0] += bm.runFast(), size);
+			double batch = time(() -> sink[0] += bm.runFastBatch(pvals), size);
+
+			System.out.printf("n = %d\tmax relative error = %.2e\tdifference to library = %.2e\t" +
+				"library = %.1f ns\tfast = %.1f ns\tbatch = %.1f ns\tspeed-up = %.1fx%n",
+				n, exactDif, libDif, lib, fast, batch, lib / batch);
+		}
+		System.out.println("sink = " + sink[0]);
+	}
+}
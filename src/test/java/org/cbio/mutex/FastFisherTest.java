@@ -0,0 +1,83 @@
+package org.cbio.mutex;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the p-values of FastFisher against exact values calculated with big integers.
+ *
+ * @author Ozgun Babur
+ */
+public class FastFisherTest
+{
+	@Test
+	public void allCasesOfSmallSampleMatchExact()
+	{
+		int n = 12;
+		FastFisher ff = FastFisher.get(n);
+		for (int a = 0; a <= n; a++)
+		{
+			for (int b = 0; b <= n; b++)
+			{
+				for (int k = Math.max(0, a + b - n); k <= Math.min(a, b); k++)
+				{
+					double exp = FastFisherBenchmark.calcExactPval(n, a, b, k);
+					double act = ff.calcDeficiencyPval(a, b, k);
+					assertEquals("a = " + a + ", b = " + b + ", k = " + k, exp, act,
+						exp * FastFisherBenchmark.TOLERANCE);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void randomCasesMatchExact()
+	{
+		for (int n : new int[]{50, 100, 500, 1000})
+		{
+			FastFisherBenchmark bm = new FastFisherBenchmark(n, 300, n);
+			assertTrue(bm.checkExact(300) <= FastFisherBenchmark.TOLERANCE);
+		}
+	}
+
+	@Test
+	public void batchAndCacheGiveSameValues()
+	{
+		int n = 200;
+		int size = 1000;
+		Random r = new Random(5);
+		int[] a = new int[size], b = new int[size], k = new int[size];
+		for (int i = 0; i < size; i++)
+		{
+			a[i] = r.nextInt(n / 2);
+			b[i] = r.nextInt(n / 2);
+			int min = Math.max(0, a[i] + b[i] - n);
+			k[i] = min + r.nextInt(Math.min(a[i], b[i]) - min + 1);
+		}
+
+		FastFisher ff = FastFisher.get(n);
+		double[] batch = new double[size];
+		ff.calcDeficiencyPvals(a, b, k, size, batch);
+
+		PvalCache prev = FastFisher.getCache();
+		FastFisher.setCache(new PvalCache(64));
+		try
+		{
+			// twice, so that the second round has hits
+			for (int round = 0; round < 2; round++)
+			{
+				for (int i = 0; i < size; i++)
+				{
+					assertEquals(batch[i], ff.calcDeficiencyPval(a[i], b[i], k[i]), 0);
+				}
+			}
+		}
+		finally
+		{
+			FastFisher.setCache(prev);
+		}
+	}
+}
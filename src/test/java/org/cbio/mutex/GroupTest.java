@@ -0,0 +1,108 @@
+package org.cbio.mutex;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the p-values of groups, which are calculated on bitsets, against the counts of the same
+ * tests taken on boolean arrays.
+ *
+ * @author Ozgun Babur
+ */
+public class GroupTest
+{
+	private static final int SAMPLES = 150;
+
+	private static GeneAlt createGene(String id, boolean[] b)
+	{
+		String[] data = new String[b.length + 1];
+		data[0] = id;
+		for (int i = 0; i < b.length; i++)
+		{
+			data[i + 1] = b[i] ? "1" : "0";
+		}
+		return new GeneAlt(data);
+	}
+
+	/**
+	 * Calculates the p-value of each gene against the union of the others with boolean arrays.
+	 */
+	private static double[] calcBaseline(List<boolean[]> genes)
+	{
+		double[] pvals = new double[genes.size()];
+		for (int g = 0; g < genes.size(); g++)
+		{
+			boolean[] gene = genes.get(g);
+			int a = 0, b = 0, k = 0;
+			for (int i = 0; i < SAMPLES; i++)
+			{
+				boolean other = false;
+				for (int o = 0; o < genes.size(); o++)
+				{
+					if (o != g && genes.get(o)[i]) other = true;
+				}
+				if (gene[i]) a++;
+				if (other) b++;
+				if (gene[i] && other) k++;
+			}
+			pvals[g] = FastFisherBenchmark.calcExactPval(SAMPLES, a, b, k);
+		}
+		return pvals;
+	}
+
+	private static void assertClose(double exp, double act)
+	{
+		assertEquals(exp, act, exp * 1E-9);
+	}
+
+	@Test
+	public void pvalsMatchBooleanBaseline()
+	{
+		Random r = new Random(4);
+		for (int rep = 0; rep < 50; rep++)
+		{
+			List<boolean[]> changes = new ArrayList<>();
+			Group group = null;
+			int size = 2 + r.nextInt(4);
+
+			for (int g = 0; g < size; g++)
+			{
+				boolean[] b = BitUtilTest.randomChanges(r, SAMPLES, 0.05 + 0.2 * r.nextDouble());
+				GeneAlt gene = createGene("G" + g, b);
+
+				if (g == size - 1)
+				{
+					// last gene is scored as a candidate first, and then as a member
+					List<boolean[]> future = new ArrayList<>(changes);
+					future.add(b);
+					double[] exp = calcBaseline(future);
+					Map<String, Double> act = group.calcFuturePvals1(gene);
+					for (int i = 0; i < exp.length; i++)
+					{
+						assertClose(exp[i], act.get("G" + i));
+					}
+				}
+
+				changes.add(b);
+				if (group == null) group = new Group(gene);
+				else group.addGene(gene);
+			}
+
+			double[] exp = calcBaseline(changes);
+			Map<String, Double> act = group.calcPVals1();
+			double max = 0;
+			for (int i = 0; i < exp.length; i++)
+			{
+				assertClose(exp[i], act.get("G" + i));
+				max = Math.max(max, exp[i]);
+			}
+			assertClose(max, group.calcScore());
+		}
+	}
+}
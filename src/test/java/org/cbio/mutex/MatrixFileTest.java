@@ -0,0 +1,167 @@
+package org.cbio.mutex;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the alteration matrix parsed from tab-delimited, gzipped, binary and indexed files
+ * is the same as the written matrix.
+ *
+ * @author Ozgun Babur
+ */
+public class MatrixFileTest
+{
+	private static final int SAMPLES = 130;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Map<String, int[]> expected;
+	private List<String> samples;
+
+	@Before
+	public void generate()
+	{
+		Random r = new Random(15);
+		samples = new ArrayList<>();
+		for (int i = 0; i < SAMPLES; i++)
+		{
+			samples.add("S" + i);
+		}
+
+		expected = new LinkedHashMap<>();
+		for (int g = 0; g < 40; g++)
+		{
+			int[] alt = new int[SAMPLES];
+			for (int i = 0; i < SAMPLES; i++)
+			{
+				alt[i] = r.nextInt(5) == 0 ? r.nextInt(5) - 1 : 0;
+			}
+			alt[g] = 1;
+			expected.put("G" + g, alt);
+		}
+		// needs four bytes per alteration code in the binary format
+		expected.get("G7")[100] = 300;
+	}
+
+	@After
+	public void resetIndexDirectory()
+	{
+		MatrixIndex.setDirectory(null);
+	}
+
+	private String writeText(String name) throws IOException
+	{
+		String file = new File(folder.getRoot(), name).getPath();
+		try (BufferedWriter writer = IOUtil.newWriter(file))
+		{
+			writer.write("Symbol\t" + String.join("\t", samples) + "\n");
+			for (String id : expected.keySet())
+			{
+				writer.write(id);
+				for (int v : expected.get(id))
+				{
+					writer.write("\t" + v);
+				}
+				writer.write("\n");
+			}
+		}
+		return file;
+	}
+
+	private void checkGenes(Map<String, GeneAlt> genes, Set<String> ids)
+	{
+		assertEquals(ids, genes.keySet());
+		for (String id : ids)
+		{
+			GeneAlt gene = genes.get(id);
+			int[] alt = expected.get(id);
+
+			assertEquals(id, gene.getId());
+			assertArrayEquals(id, alt, gene.alterations);
+
+			boolean[] changed = new boolean[alt.length];
+			for (int i = 0; i < alt.length; i++)
+			{
+				changed[i] = alt[i] != 0;
+			}
+			assertArrayEquals(BitUtil.pack(changed), gene.getBits());
+		}
+	}
+
+	@Test
+	public void textAndGzippedTextParse() throws IOException
+	{
+		String text = writeText("matrix.txt");
+		assertEquals(samples, MatrixParser.readSampleNames(text));
+		checkGenes(new MatrixParser(text).parse(), expected.keySet());
+
+		String gzipped = writeText("matrix.txt.gz");
+		checkGenes(new MatrixParser(gzipped).parse(), expected.keySet());
+	}
+
+	@Test
+	public void binaryRoundTrip() throws IOException
+	{
+		String text = writeText("matrix.txt");
+		String binary = new File(folder.getRoot(), "matrix.bin").getPath();
+		MatrixFile.convert(text, binary);
+
+		assertTrue(MatrixFile.isMatrixFile(binary));
+		assertFalse(MatrixFile.isMatrixFile(text));
+		assertEquals(samples, MatrixParser.readSampleNames(binary));
+
+		Map<String, GeneAlt> genes = new MatrixParser(binary).parse();
+		checkGenes(genes, expected.keySet());
+
+		// decoded genes are kept, and iteration gives the same instances
+		for (GeneAlt gene : genes.values())
+		{
+			assertSame(genes.get(gene.getId()), gene);
+		}
+
+		GeneAlt removed = genes.remove("G3");
+		GeneAlt put = new GeneAlt("X", removed.alterations);
+		genes.put("X", put);
+		assertFalse(genes.containsKey("G3"));
+		assertEquals(expected.size(), genes.size());
+		assertTrue(genes.values().contains(put));
+		assertFalse(genes.values().contains(removed));
+	}
+
+	@Test
+	public void selectedGenesParse() throws IOException
+	{
+		Set<String> ids = new HashSet<>(Arrays.asList("G1", "G7", "G22", "G39"));
+		Set<String> symbols = new HashSet<>(ids);
+		symbols.add("missing");
+
+		MatrixIndex.setDirectory(folder.getRoot().getPath());
+		String text = writeText("matrix.txt");
+		for (int i = 0; i < 2; i++)
+		{
+			// the second parse reuses the row index
+			MatrixParser parser = new MatrixParser(text);
+			parser.setSymbols(symbols);
+			checkGenes(parser.parse(), ids);
+		}
+		assertEquals(1, folder.getRoot().listFiles((dir, name) ->
+			name.endsWith(MatrixIndex.EXTENSION)).length);
+
+		String binary = new File(folder.getRoot(), "matrix.bin").getPath();
+		MatrixFile.convert(text, binary);
+		MatrixParser parser = new MatrixParser(binary);
+		parser.setSymbols(symbols);
+		checkGenes(parser.parse(), ids);
+	}
+}
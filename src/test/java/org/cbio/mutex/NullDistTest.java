@@ -0,0 +1,108 @@
+package org.cbio.mutex;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the p-values of null distributions, which keep only the needed part of the sampled values,
+ * against the ranks of the scores in all sampled values.
+ *
+ * @author Ozgun Babur
+ */
+public class NullDistTest
+{
+	private static final int LIMIT = 5000;
+
+	/**
+	 * Ends of the tiers, growing by a factor of 1.5 as in NullDist.
+	 */
+	private static List<Integer> getTierEnds(int limit)
+	{
+		List<Integer> ends = new ArrayList<>();
+		int end = Math.min(NullDist.LOW_ACCURACY, limit);
+		ends.add(end);
+		while (end < limit)
+		{
+			end = (int) Math.min(limit, Math.ceil(end * 1.5));
+			ends.add(end);
+		}
+		return ends;
+	}
+
+	/**
+	 * Gets the p-value of the score from the smallest accurate prefix of all sampled values.
+	 */
+	private static double getExpectedPval(List<Double> all, double score)
+	{
+		List<Integer> ends = getTierEnds(LIMIT);
+		int cnt = 0;
+		int from = 0;
+		for (int end : ends)
+		{
+			if (end > all.size()) break;
+			for (int i = from; i < end; i++)
+			{
+				if (all.get(i) <= score) cnt++;
+			}
+			from = end;
+
+			boolean accurate = end >= LIMIT || !(cnt < NullDist.LOW_ACCURACY ||
+				(cnt < NullDist.HIGH_ACCURACY && cnt / (double) end < NullDist.ACCURACY_SWITCH));
+			if (accurate) return cnt / (double) end;
+		}
+		throw new AssertionError("Score " + score + " is not sampled enough.");
+	}
+
+	@After
+	public void resetMemoryLimit()
+	{
+		NullDist.setMemoryLimit(0);
+	}
+
+	@Test
+	public void pvalsMatchFullRanks()
+	{
+		Random r = new Random(6);
+		List<Double> all = new ArrayList<>();
+		NullDist dist = new NullDist(LIMIT, 7);
+
+		// scores are multiples of a power of 2, so that single precision values compare the same
+		double[] scores = new double[300];
+		for (int i = 0; i < scores.length; i++)
+		{
+			scores[i] = r.nextInt(i % 3 == 0 ? 16 : 1024) / 1024D;
+			dist.sampleFor(scores[i], () -> {
+				double v = r.nextDouble();
+				all.add(v);
+				return v;
+			});
+			assertEquals(getExpectedPval(all, scores[i]), dist.getPvalOfScore(scores[i]), 0);
+		}
+
+		assertEquals(LIMIT, all.size());
+		assertEquals(LIMIT, dist.size());
+
+		double[] exp = new double[scores.length];
+		for (int i = 0; i < scores.length; i++)
+		{
+			exp[i] = getExpectedPval(all, scores[i]);
+			assertEquals(exp[i], dist.getPvalOfScore(scores[i]), 0);
+		}
+
+		// a tiny budget compresses all distributions at the next sampling
+		NullDist.setMemoryLimit(1);
+		new NullDist(LIMIT, 8).sampleFor(0, r::nextDouble);
+		assertTrue(NullDist.getReport().contains("compressed"));
+
+		for (int i = 0; i < scores.length; i++)
+		{
+			assertEquals(exp[i], dist.getPvalOfScore(scores[i]), 0);
+		}
+	}
+}
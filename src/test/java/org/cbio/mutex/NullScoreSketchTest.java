@@ -0,0 +1,131 @@
+package org.cbio.mutex;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the counts of the null score sketch against the counts on all scores.
+ *
+ * @author Ozgun Babur
+ */
+public class NullScoreSketchTest
+{
+	private static final int CAPACITY = 100;
+
+	private static double[] randomScores(Random r, int size)
+	{
+		double[] scores = new double[size];
+		for (int i = 0; i < size; i++)
+		{
+			// a few ties, and a wide range of magnitudes
+			scores[i] = r.nextInt(10) == 0 ? 0.5 : Math.pow(10, -6 * r.nextDouble());
+		}
+		return scores;
+	}
+
+	/**
+	 * Checks that the counts are within their errors above the true counts, and exact for the values
+	 * that are not above the capacity-th smallest score.
+	 */
+	private static void checkCounts(NullScoreSketch sketch, double[] all, double[] vals)
+	{
+		double[] sorted = all.clone();
+		Arrays.sort(sorted);
+
+		long[] errors = new long[vals.length];
+		long[] counts = sketch.countAtMost(vals, errors);
+		for (int i = 0; i < vals.length; i++)
+		{
+			int exp = 0;
+			while (exp < sorted.length && sorted[exp] <= vals[i]) exp++;
+
+			assertTrue(counts[i] >= exp);
+			assertTrue(counts[i] - errors[i] <= exp);
+			if (vals[i] <= sorted[CAPACITY - 1])
+			{
+				assertEquals(exp, counts[i]);
+				assertEquals(0, errors[i]);
+			}
+			if (errors[i] == 0) assertEquals(exp, counts[i]);
+		}
+	}
+
+	private static double[] queries(Random r, double[] all)
+	{
+		double[] vals = new double[500];
+		for (int i = 0; i < vals.length; i++)
+		{
+			// half are existing scores, to check the ties
+			vals[i] = i % 2 == 0 ? all[r.nextInt(all.length)] : Math.pow(10, -7 * r.nextDouble());
+		}
+		Arrays.sort(vals);
+		return vals;
+	}
+
+	@Test
+	public void countsAreBounded()
+	{
+		Random r = new Random(12);
+		double[] all = randomScores(r, 20000);
+		NullScoreSketch sketch = new NullScoreSketch(CAPACITY);
+		sketch.addAll(all);
+
+		assertEquals(all.length, sketch.size());
+		assertFalse(sketch.isExact());
+		assertTrue(sketch.getExactSize() < 4 * CAPACITY);
+		checkCounts(sketch, all, queries(r, all));
+	}
+
+	@Test
+	public void mergedCountsAreBounded()
+	{
+		Random r = new Random(13);
+		double[] all = new double[0];
+		NullScoreSketch sketch = new NullScoreSketch(CAPACITY);
+
+		for (int run = 0; run < 10; run++)
+		{
+			double[] scores = randomScores(r, 1 + r.nextInt(2000));
+			NullScoreSketch other = new NullScoreSketch(CAPACITY);
+			other.addAll(scores);
+			sketch.merge(other);
+
+			all = Arrays.copyOf(all, all.length + scores.length);
+			System.arraycopy(scores, 0, all, all.length - scores.length, scores.length);
+		}
+
+		assertEquals(all.length, sketch.size());
+		checkCounts(sketch, all, queries(r, all));
+	}
+
+	@Test
+	public void unlimitedSketchIsExact()
+	{
+		Random r = new Random(14);
+		double[] all = randomScores(r, 5000);
+		NullScoreSketch sketch = new NullScoreSketch(0);
+		sketch.addAll(all);
+		assertTrue(sketch.isExact());
+
+		long[] errors = new long[500];
+		double[] vals = queries(r, all);
+		long[] counts = sketch.countAtMost(vals, errors);
+		for (int i = 0; i < vals.length; i++)
+		{
+			int exp = 0;
+			for (double v : all)
+			{
+				if (v <= vals[i]) exp++;
+			}
+			assertEquals(exp, counts[i]);
+			assertEquals(0, errors[i]);
+		}
+
+		sketch.clear();
+		assertEquals(0, sketch.size());
+	}
+}
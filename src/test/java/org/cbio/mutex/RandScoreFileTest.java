@@ -0,0 +1,105 @@
+package org.cbio.mutex;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the header and the scores of random score files survive writing and reading, in both
+ * plain and gzipped binary files, and in text files.
+ *
+ * @author Ozgun Babur
+ */
+public class RandScoreFileTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static double[] randomScores(int size)
+	{
+		Random r = new Random(size);
+		double[] scores = new double[size];
+		for (int i = 0; i < size; i++)
+		{
+			scores[i] = r.nextDouble() * Math.pow(10, -r.nextInt(20));
+		}
+		return scores;
+	}
+
+	private void checkRoundTrip(String name, int size) throws IOException
+	{
+		File file = new File(folder.getRoot(), name);
+		RandScoreFile written = new RandScoreFile(7, 0x1234567890ABL, -42, randomScores(size));
+		written.write(file);
+
+		assertTrue(RandScoreFile.isScoreFile(file));
+		assertEquals(7, RandScoreFile.countRuns(file));
+		assertEquals(-42, RandScoreFile.readFingerprint(file));
+
+		RandScoreFile read = RandScoreFile.read(file);
+		assertEquals(7, read.runs);
+		assertEquals(0x1234567890ABL, read.runId);
+		assertEquals(-42, read.fingerprint);
+		assertArrayEquals(written.scores, read.scores, 0);
+	}
+
+	@Test
+	public void binaryRoundTrip() throws IOException
+	{
+		checkRoundTrip("empty" + RandScoreFile.BINARY_EXTENSION, 0);
+		checkRoundTrip("small" + RandScoreFile.BINARY_EXTENSION, 10);
+
+		// more than one write buffer
+		checkRoundTrip("large" + RandScoreFile.BINARY_EXTENSION, 10000);
+	}
+
+	@Test
+	public void gzippedRoundTrip() throws IOException
+	{
+		checkRoundTrip("small" + RandScoreFile.BINARY_EXTENSION + ".gz", 10);
+		checkRoundTrip("large" + RandScoreFile.BINARY_EXTENSION + ".gz", 10000);
+	}
+
+	@Test
+	public void textIsOneRunWithoutFingerprint() throws IOException
+	{
+		File file = new File(folder.getRoot(), "run" + RandScoreFile.TEXT_EXTENSION);
+		Files.write(file.toPath(), "0.5\n\n1.0E-5\n0.25\n".getBytes());
+
+		assertEquals(1, RandScoreFile.countRuns(file));
+		assertEquals(0, RandScoreFile.readFingerprint(file));
+
+		RandScoreFile read = RandScoreFile.read(file);
+		assertEquals(1, read.runs);
+		assertEquals(0, read.fingerprint);
+		assertArrayEquals(new double[]{0.5, 1E-5, 0.25}, read.scores, 0);
+	}
+
+	@Test(expected = IOException.class)
+	public void truncatedFileIsRejected() throws IOException
+	{
+		File file = new File(folder.getRoot(), "cut" + RandScoreFile.BINARY_EXTENSION);
+		new RandScoreFile(1, 1, 1, randomScores(100)).write(file);
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+		{
+			raf.setLength(raf.length() - 8);
+		}
+		RandScoreFile.read(file);
+	}
+
+	@Test(expected = IOException.class)
+	public void otherFileIsRejected() throws IOException
+	{
+		File file = new File(folder.getRoot(), "other" + RandScoreFile.BINARY_EXTENSION);
+		Files.write(file.toPath(), new byte[64]);
+		RandScoreFile.readFingerprint(file);
+	}
+}